@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.benchmarks;
+
+import microTiPi.epifluorescence.WideFieldModel;
+import mitiv.base.Shape;
+
+/**
+ * Models shared by the benchmarks
+ *
+ * @author Ferréol
+ *
+ */
+final class BenchmarkModels {
+
+    static final double NA = 1.4;
+    static final double LAMBDA = 542e-9;
+    static final double NI = 1.518;
+    static final double DXY = 64.5e-9;
+    static final double DZ = 160e-9;
+    static final int NPHASE = 10;
+    static final int NMODULUS = 4;
+    static final double[] PHASE = {0.1, -0.2, 0.05, 0.3, -0.1, 0.02, 0.01, -0.03, 0.04, -0.05};
+    static final double[] MODULUS = {1.0, 0.1, -0.05, 0.02};
+
+    private BenchmarkModels() {
+    }
+
+    /**
+     * Build an aberrated model with its PSF computed
+     * @param size lateral size of the PSF
+     * @param nz number of planes
+     * @param radial
+     * @param single
+     * @return the model
+     */
+    static WideFieldModel build(int size, int nz, boolean radial, boolean single) {
+        WideFieldModel model = new WideFieldModel(new Shape(size, size, nz), NPHASE, NMODULUS,
+                NA, LAMBDA, NI, DXY, DZ, radial, single);
+        model.setPhase(PHASE);
+        model.setModulus(MODULUS);
+        model.computePsf();
+        return model;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import microTiPi.epifluorescence.WideFieldModel;
+import microTiPi.microscopy.PSF_Estimation;
+import mitiv.array.Double3D;
+import mitiv.array.Float3D;
+import mitiv.array.ShapedArray;
+import mitiv.base.Shape;
+
+/**
+ * Benchmark of one iteration of the PSF estimation on the phase
+ * <p>
+ * The data are the PSF of an aberrated model seen through a point-like object
+ * and the estimation starts from an aberration-free pupil.
+ *
+ * @author Ferréol
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PSFEstimationBenchmark {
+
+    @Param({"64", "128", "256"})
+    public int size;
+
+    @Param({"16", "64"})
+    public int nz;
+
+    @Param({"true", "false"})
+    public boolean single;
+
+    @Param({"false", "true"})
+    public boolean radial;
+
+    private WideFieldModel model;
+    private PSF_Estimation estimation;
+    private double[] phase0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        WideFieldModel truth = BenchmarkModels.build(size, nz, radial, single);
+        ShapedArray data = truth.getPsf().copy();
+        truth.close();
+
+        model = BenchmarkModels.build(size, nz, radial, single);
+        phase0 = new double[BenchmarkModels.NPHASE];
+        model.setPhase(phase0);
+
+        Shape shape = data.getShape();
+        int number = data.getNumber();
+        ShapedArray obj, weights;
+        if (single) {
+            float[] o = new float[number];
+            o[0] = 1.f;
+            float[] w = new float[number];
+            Arrays.fill(w, 1.f);
+            obj = Float3D.wrap(o, shape);
+            weights = Float3D.wrap(w, shape);
+        } else {
+            double[] o = new double[number];
+            o[0] = 1.;
+            double[] w = new double[number];
+            Arrays.fill(w, 1.);
+            obj = Double3D.wrap(o, shape);
+            weights = Double3D.wrap(w, shape);
+        }
+
+        estimation = new PSF_Estimation(model);
+        estimation.setData(data);
+        estimation.setObj(obj);
+        estimation.setWeight(weights);
+        estimation.setMaximumIterations(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        model.close();
+    }
+
+    @Benchmark
+    public double fitPhase() {
+        model.setPhase(phase0);
+        estimation.fitPSF(WideFieldModel.PHASE);
+        return estimation.getCost();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import microTiPi.epifluorescence.WideFieldModel;
+import mitiv.array.Array3D;
+import mitiv.array.Double3D;
+import mitiv.base.Shape;
+import mitiv.linalg.shaped.DoubleShapedVector;
+import mitiv.linalg.shaped.DoubleShapedVectorSpace;
+import mitiv.linalg.shaped.FloatShapedVectorSpace;
+import mitiv.linalg.shaped.ShapedVector;
+import mitiv.linalg.shaped.ShapedVectorSpace;
+
+/**
+ * Benchmarks of the PSF and of the Jacobians of the WideFieldModel
+ *
+ * @author Ferréol
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WideFieldModelBenchmark {
+
+    @Param({"64", "128", "256", "512"})
+    public int size;
+
+    @Param({"16", "64"})
+    public int nz;
+
+    @Param({"true", "false"})
+    public boolean single;
+
+    @Param({"false", "true"})
+    public boolean radial;
+
+    private WideFieldModel model;
+    private ShapedVector q;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        model = BenchmarkModels.build(size, nz, radial, single);
+
+        /* Random residuals for the Jacobians */
+        Shape shape = model.getPsf().getShape();
+        ShapedVectorSpace space = (single ? new FloatShapedVectorSpace(shape) : new DoubleShapedVectorSpace(shape));
+        double[] residuals = new double[shape.number()];
+        Random random = new Random(1);
+        for (int i = 0; i < residuals.length; i++) {
+            residuals[i] = random.nextGaussian();
+        }
+        q = space.create(Double3D.wrap(residuals, shape));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        model.close();
+    }
+
+    @Benchmark
+    public Array3D computePsf() {
+        model.invalidate();
+        model.computePsf();
+        return model.getPsf();
+    }
+
+    @Benchmark
+    public DoubleShapedVector applyJDefocus() {
+        return model.apply_J_defocus(q);
+    }
+
+    @Benchmark
+    public DoubleShapedVector applyJPhase() {
+        return model.apply_J_phase(q);
+    }
+
+    @Benchmark
+    public DoubleShapedVector applyJModulus() {
+        return model.apply_J_modulus(q);
+    }
+}
@@ -27,27 +27,27 @@ package microTiPi.epifluorescence;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
+import org.jtransforms.fft.DoubleFFT_1D;
 import org.jtransforms.fft.DoubleFFT_2D;
-import org.jtransforms.fft.DoubleFFT_3D;
+import org.jtransforms.fft.FloatFFT_1D;
 import org.jtransforms.fft.FloatFFT_2D;
-import org.jtransforms.fft.FloatFFT_3D;
-
-import microTiPi.microUtils.Zernike;
+import org.jtransforms.utils.CommonUtils;
+
+import microTiPi.microUtils.FFTPlans;
+import microTiPi.microUtils.FftThreads;
+import microTiPi.microUtils.HankelTransform;
+import microTiPi.microUtils.MatrixVector;
+import microTiPi.microUtils.ParallelRange;
+import microTiPi.microUtils.ThreadBuffers;
+import microTiPi.microUtils.ZernikeCache;
 import microTiPi.microscopy.MicroscopeModel;
 import mitiv.array.Array3D;
 import mitiv.array.Array4D;
 import mitiv.array.ArrayFactory;
-import mitiv.array.Double1D;
-import mitiv.array.Double2D;
 import mitiv.array.Double3D;
 import mitiv.array.Double4D;
-import mitiv.array.Float2D;
 import mitiv.array.Float3D;
 import mitiv.array.Float4D;
 import mitiv.base.Shape;
@@ -91,12 +91,25 @@ public class WideFieldModel extends MicroscopeModel{
     protected double lambda_ni;  // (ni / \lambda)  FIXME Useless, should be removed
     protected double radius; // radius of the pupil in meter^-1
     protected double pupil_area; // area of the pupil
-    protected double[] Z; // Zernike polynomials basis
+    protected double[] Z; // Zernike polynomials basis, shared with ZernikeCache (null in single precision)
     protected boolean[] maskPupil; // position in the where the pupil is non null including vignetting
     protected boolean[] mapPupil; // position in the where the pupil is non null
     protected double[] rho; // pupil modulus based on Zernike polynomials
     protected double[] phi; // pupil phase based on Zernike polynomials
     protected double[] psi; // defocus function
+    protected int[] mapIndex; // indices of the pixels where mapPupil is true
+    protected int[] pupilIndex; // indices of the pixels where maskPupil is true (pupil support)
+    protected int nPupil; // number of pixels of the pupil support
+    protected double[] Zs; // Zernike basis packed on the pupil support
+    protected double[] rhoS; // modulus packed on the pupil support
+    protected double[] phiS; // phase packed on the pupil support
+    protected double[] psiS; // defocus function packed on the pupil support
+    /* in single precision, the packed quantities are stored in float instead */
+    protected float[] ZsF; // Zernike basis packed on the pupil support
+    private int[] packedIndex; // pupil support on which Zs or ZsF has been packed
+    protected float[] rhoSF; // modulus packed on the pupil support
+    protected float[] phiSF; // phase packed on the pupil support
+    protected float[] psiSF; // defocus function packed on the pupil support
     protected Array4D cpxPsf; // Fourier transform of the pupil function
 
     protected Shape cpxPsfShape;
@@ -123,6 +136,46 @@ public class WideFieldModel extends MicroscopeModel{
     public static final int[] parametersFlag = {DEFOCUS,PHASE,MODULUS};
 
     private boolean para=true;
+    private boolean useSymmetry=true;
+    private boolean useHankel=false;
+    private boolean usePhasorRecurrence=false;
+    /* maximum number of slices computed by the phasor recurrence from one evaluation of the phasors */
+    private static final int PHASOR_RUN = 16;
+    private double[] phasorRotation; // exp(i.2π.dz.ψ) on the pupil support
+    private boolean usePhasorCache=false;
+    private boolean lowMemory=false;
+    private boolean limitFftThreads=false;
+    private double[][] phasorCache; // exp(iΦ(z)) on the pupil support for each slice
+    private float[][] phasorCacheF; // idem in single precision
+    private boolean fillingPhasorCache = false; // true while computePsf() fills the cache
+    private boolean phasorCacheFilled = false; // true if the cache holds the phasors of the last PSF
+
+    /* components of the pupil to update before the next PSF computation */
+    private static final int RHO = 1;
+    private static final int PHI = 2;
+    private static final int PSI = 4;
+    private int dirty = PSI;
+    /* parameters of the current pupil, to detect unchanged updates */
+    private double[] rhoCoefs;
+    private double[] phiCoefs;
+
+    /* radial engine: Hankel transform, resampling on the grid and pupil profiles */
+    private HankelTransform hankel;
+    private int[] hankelIndex; // for each pixel, index of the radius just below
+    private double[] hankelWeight; // for each pixel, weight of the radius just above
+    private double[] rhoK; // modulus at the Hankel frequencies
+    private double[] phiK; // phase at the Hankel frequencies
+    private double[] psiK; // defocus function at the Hankel frequencies
+    private int[] axisIndex; // for each Hankel frequency, pixel of the kx axis just below (-1 if evanescent)
+    private double[] axisWeight; // for each Hankel frequency, weight of the pixel just above
+    private boolean hankelPsf = false; // true if the current PSF was computed by the radial engine
+
+    /* per-thread work buffers, released by close() */
+    private final ThreadBuffers buffers = new ThreadBuffers(4);
+    private static final int PUPIL_BUFFER = 0; // pupil function or slice of 2.Nx.Ny values
+    private static final int PHASOR_BUFFER = 1; // phasors of a run on the pupil support
+    private static final int RADII_BUFFER = 2; // Hankel amplitude at the radii
+    private static final int FREQUENCY_BUFFER = 3; // Hankel profile at the frequencies
 
     /**
      * @param psfShape  shape of the PSF
@@ -189,1183 +242,1778 @@ public class WideFieldModel extends MicroscopeModel{
 
 
     /**
-     * Compute the Zernike basis Z.
+     * Compute the Zernike basis Z. It is taken from the shared cache of bases
+     * and must not be modified; only its first Nzern modes are used. In single
+     * precision, only the packed basis ZsF is kept (see {@link #packZernike()}).
      */
     protected void computeZernike(){
-        Z = Zernike.zernikeArray(Nzern, Nx, Ny, radius*dxy*Nx, NORMALIZED,radial);
-        Z = MathUtils.gram_schmidt_orthonormalization(Z, Nx, Ny, Nzern);
+        Z = cachedZernike();
+        packZernike();
     }
 
     /**
-     * Compute the point spread function
-     * <p>
-     * h_k(z) = |a_k(z)|² = |Σ_j F_{j,k} A_j(z)|²
+     * @return the Zernike basis from the shared cache, the missing modes
+     * being computed with the executor of the model
      */
+    private double[] cachedZernike(){
+        lockExecutor();
+        try {
+            return ZernikeCache.getBasis(Nzern, Nx, Ny, radius*dxy*Nx, NORMALIZED,radial, kernelExecutor());
+        } finally {
+            unlockExecutor();
+        }
+    }
 
-    @Override
-    public void computePsf(){
-        if (PState>0)
+    /**
+     * Copy the Zernike basis on the pupil support in Zs (ZsF in single
+     * precision).
+     * <p>
+     * In single precision the full basis Z is dropped once packed, halving
+     * the memory of the basis. A later repack is done from ZsF when the new
+     * support is included in the previous one, and from the cache otherwise.
+     * If the cache has released the basis meanwhile, it is computed again:
+     * this is the price of the memory saved.
+     */
+    protected void packZernike(){
+        if (((Z == null) && (Zs == null) && (ZsF == null)) || (pupilIndex == null)){
             return;
-        if(isSingle()){
-            cpxPsf = Float4D.create(  cpxPsfShape);
-            psf = Float3D.create( psfShape);
-
-            final float PSFnorm = (float) (1.0/(Nx*Ny*Nz));
-            final int Npix = Nx*Ny;
-
-            int threads = Runtime.getRuntime().availableProcessors();
-            ExecutorService service = Executors.newFixedThreadPool(threads);
-
-            List<Future<GetPsfParaOut>> futures = new ArrayList<>();
-            for ( int iz = 0; iz < Nz; iz++)
-            {
-                final int iz1 = iz;
-                Callable<GetPsfParaOut> callable = new Callable<GetPsfParaOut>() {
-                    @Override
-                    public GetPsfParaOut call() throws Exception {
-                        GetPsfParaOut output = new GetPsfParaOut(Npix,iz1,isSingle());
-
-                        double defoc_scale;
-                        double phasePupil;
-                        float[] A = new float[2*Npix];
-
-                        if (iz1 > Nz/2)
-                        {
-                            defoc_scale = DEUXPI*(iz1 - Nz)*dz;
-                        }
-                        else
-                        {
-                            defoc_scale = DEUXPI*iz1*dz;
-                        }
-
-                        for (int in = 0; in < Npix; in++)
-                        {
-                            phasePupil = phi[in] + defoc_scale*psi[in];
-                            A[2*in] = (float) (rho[in]*Math.cos(phasePupil));
-                            A[2*in + 1] = (float) (rho[in]*Math.sin(phasePupil));
-                        }
-                        /* Fourier transform of the pupil function A(z) */
-                        FloatFFT_2D FFT2D = new FloatFFT_2D(Nx, Ny);
-                        FFT2D.complexForward(A);
-
-                        for (int in = 0; in < Npix; in++)
-                        {
-                            ((float[])output.outA)[2*in] = A[2*in];
-                            ((float[])output.outA)[2*in + 1] = -A[2*in + 1]; // store conjugate of A
-                            ((float[])output.outPsf)[in] = (A[2*in]*A[2*in] + A[2*in+1]*A[2*in+1])*PSFnorm ;
-                        }
-                        return output;
+        }
+        final int Npix = Nx*Ny;
+        if (isSingle()){
+            float[] packed = ((Z == null) && (ZsF != null) ? repackZernike(ZsF) : null);
+            if (packed == null) {
+                final double[] basis = (Z != null ? Z : cachedZernike());
+                packed = new float[Nzern*nPupil];
+                for (int n = 0; n < Nzern; n++)
+                {
+                    for (int p = 0; p < nPupil; p++)
+                    {
+                        packed[p + n*nPupil] = (float) basis[pupilIndex[p] + n*Npix];
                     }
-                };
-                futures.add(service.submit(callable));
-            }
-
-            service.shutdown();
-
-            for (Future<GetPsfParaOut> future : futures) {
-                GetPsfParaOut output;
-                try {
-                    output = future.get();
-                    cpxPsf.slice(output.idxz).assign(Float3D.wrap((float[])output.outA, aShape));
-                    psf.slice(output.idxz).assign(Float2D.wrap((float[])output.outPsf, psf2DShape));
-                } catch (InterruptedException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                } catch (ExecutionException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
                 }
             }
+            Z = null;
+            Zs = null;
+            ZsF = packed;
         }else{
-            if(para){
-                cpxPsf = Double4D.create(  cpxPsfShape);
-                psf = Double3D.create( psfShape);
-
-                final double PSFnorm = 1.0/(Nx*Ny*Nz);
-                final int Npix = Nx*Ny;
-
-                int threads = Runtime.getRuntime().availableProcessors();
-                ExecutorService service = Executors.newFixedThreadPool(threads);
-
-                List<Future<GetPsfParaOut>> futures = new ArrayList<>();
-                for ( int iz = 0; iz < Nz; iz++)
+            if (Z == null) {
+                Z = cachedZernike();
+            }
+            ZsF = null;
+            Zs = new double[Nzern*nPupil];
+            for (int n = 0; n < Nzern; n++)
+            {
+                for (int p = 0; p < nPupil; p++)
                 {
-                    final int iz1 = iz;
-                    Callable<GetPsfParaOut> callable = new Callable<GetPsfParaOut>() {
-                        @Override
-                        public GetPsfParaOut call() throws Exception {
-                            GetPsfParaOut output = new GetPsfParaOut(Npix,iz1,isSingle());
-                            double defoc_scale;
-                            double phasePupil;
-                            double[] A = new double[2*Npix];
-
-                            if (iz1 > Nz/2)
-                            {
-                                defoc_scale = DEUXPI*(iz1 - Nz)*dz;
-                            }
-                            else
-                            {
-                                defoc_scale = DEUXPI*iz1*dz;
-                            }
-
-                            for (int in = 0; in < Npix; in++)
-                            {
-                                phasePupil = phi[in] + defoc_scale*psi[in];
-                                A[2*in] = rho[in]*Math.cos(phasePupil);
-                                A[2*in + 1] = rho[in]*Math.sin(phasePupil);
-                            }
-                            /* Fourier transform of the pupil function A(z) */
-
-                            DoubleFFT_2D   FFT2D = new DoubleFFT_2D(Nx, Ny);
-
-                            FFT2D.complexForward(A);
-
-                            for (int in = 0; in < Npix; in++)// FIXME use ShapedArray
-                            {
-                                ((double[])output.outA)[2*in] = A[2*in];
-                                ((double[])output.outA)[2*in + 1] = -A[2*in + 1]; // store conjugate of A
-                                ((double[])output.outPsf)[in] = (A[2*in]*A[2*in] + A[2*in+1]*A[2*in+1])*PSFnorm ;
-                            }
-                            return output;
-                        }
-                    };
-                    futures.add(service.submit(callable));
-                }
-
-                service.shutdown();
-
-                for (Future<GetPsfParaOut> future : futures) {
-                    GetPsfParaOut output;
-                    try {
-                        output = future.get();
-                        cpxPsf.slice(output.idxz).assign(Double3D.wrap((double[])output.outA, aShape));
-                        psf.slice(output.idxz).assign(Double2D.wrap((double[])output.outPsf, psf2DShape));
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
+                    Zs[p + n*nPupil] = Z[pupilIndex[p] + n*Npix];
                 }
-            }else{
-                cpxPsf = Double4D.create(  cpxPsfShape);
-                psf = Double3D.create( psfShape);
-
-                final double PSFnorm = 1.0/(Nx*Ny*Nz);
-                final int Npix = Nx*Ny;
-
-                DoubleFFT_2D FFT2D = new DoubleFFT_2D(Nx, Ny);
-
-                for ( int iz = 0; iz < Nz; iz++)
-                {
-                    double defoc_scale;
-                    double phasePupil;
-                    double[] A = new double[2*Npix];
-
-                    if (iz > Nz/2)
-                    {
-                        defoc_scale = DEUXPI*(iz - Nz)*dz;
-                    }
-                    else
-                    {
-                        defoc_scale = DEUXPI*iz*dz;
-                    }
-                    for (int in = 0; in < Npix; in++)
-                    {
-                        phasePupil =phi[in] + defoc_scale*psi[in];
-                        A[2*in] = rho[in]*Math.cos(phasePupil);
-                        A[2*in + 1] = rho[in]*Math.sin(phasePupil);
-                    }
-                    /* Fourier transform of the pupil function A(z) */
-                    FFT2D.complexForward(A);
-
-                    for (int iy = 0; iy < Ny; iy++){
-                        for (int ix = 0; ix < Nx; ix++){
-                            int in = (ix+Nx*iy);
+            }
+        }
+        packedIndex = pupilIndex;
+        dirty |= RHO | PHI;
+        invalidate();
+    }
 
-                            ((Double4D) cpxPsf).set(0, ix, iy, iz, A[2*in]);
-                            ((Double4D) cpxPsf).set(1, ix, iy, iz, -A[2*in+1]);
-                            ((Double3D) psf).set(ix, iy, iz, (A[2*in]*A[2*in] + A[2*in+1]*A[2*in+1])*PSFnorm);
-                        }
-                    }
-                }
+    /**
+     * Pack on the current support a basis packed on the previous one.
+     * @param previous basis packed on packedIndex
+     * @return the basis packed on pupilIndex, null if the current support is
+     * not included in the previous one
+     */
+    private float[] repackZernike(float[] previous){
+        if ((packedIndex == null) || (previous.length != Nzern*packedIndex.length)){
+            return null;
+        }
+        final int nPrevious = packedIndex.length;
+        /* both supports are in increasing order */
+        int[] map = new int[nPupil];
+        for (int p = 0, q = 0; p < nPupil; p++)
+        {
+            while ((q < nPrevious) && (packedIndex[q] < pupilIndex[p]))
+            {
+                q++;
+            }
+            if ((q == nPrevious) || (packedIndex[q] != pupilIndex[p]))
+            {
+                return null;
+            }
+            map[p] = q;
+        }
+        float[] packed = new float[Nzern*nPupil];
+        for (int n = 0; n < Nzern; n++)
+        {
+            for (int p = 0; p < nPupil; p++)
+            {
+                packed[p + n*nPupil] = previous[map[p] + n*nPrevious];
             }
         }
-        PState = 1;
+        return packed;
     }
 
-    @Override
-    public DoubleShapedVector apply_Jacobian(ShapedVector grad, ShapedVectorSpace xspace){
-        if(xspace ==  parameterSpace[DEFOCUS]){
-            return apply_J_defocus( grad);
-        }else if(xspace ==  parameterSpace[PHASE]){
-            return apply_J_phase( grad);
-        }else if(xspace ==  parameterSpace[MODULUS]){
-            return apply_J_modulus( grad);
+    /**
+     * Build the list of pixels of the pupil support from maskPupil and
+     * repack all the pupil quantities on it.
+     */
+    protected void updatePupilSupport(){
+        final int Npix = Nx*Ny;
+        nPupil = 0;
+        for (int in = 0; in < Npix; in++)
+        {
+            if (maskPupil[in])
+            {
+                nPupil++;
+            }
+        }
+        pupilIndex = new int[nPupil];
+        for (int in = 0, p = 0; in < Npix; in++)
+        {
+            if (maskPupil[in])
+            {
+                pupilIndex[p++] = in;
+            }
+        }
+        if (isSingle()){
+            rhoS = phiS = psiS = null;
+            rhoSF = new float[nPupil];
+            phiSF = new float[nPupil];
+            psiSF = new float[nPupil];
         }else{
-            throw new IllegalArgumentException("DoubleShapedVector grad does not belong to any space");
+            rhoSF = phiSF = psiSF = null;
+            rhoS = new double[nPupil];
+            phiS = new double[nPupil];
+            psiS = new double[nPupil];
         }
+        packPsi();
+        packZernike();
+        dirty |= RHO | PHI;
+        invalidate();
     }
 
-    @Override
-    public  void setParam(DoubleShapedVector param) {
-        if(param.getOwner() ==  parameterSpace[DEFOCUS]){
-            setDefocus(param);
-        }else if(param.getOwner() ==  parameterSpace[PHASE]){
-            setPhase(param);
-        }else if(param.getOwner() ==  parameterSpace[MODULUS]){
-            setModulus(param);
+    /**
+     * @return the index in the Zernike basis of the first phase mode
+     */
+    protected int phaseOffset(){
+        return (radial ? 1 : 3);
+    }
+
+    /**
+     * Copy a quantity packed on the pupil support in a full pupil array.
+     * @param packed the values on the pupil support
+     * @param full the destination array, allocated if null
+     * @return the full array
+     */
+    protected double[] unpack(double[] packed, double[] full){
+        if (full == null){
+            full = new double[Nx*Ny];
         }else{
-            throw new IllegalArgumentException("DoubleShapedVector param does not belong to any space");
+            Arrays.fill(full, 0.);
+        }
+        for (int p = 0; p < nPupil; p++)
+        {
+            full[pupilIndex[p]] = packed[p];
         }
+        return full;
     }
 
     /**
-     * Apply the Jacobian matrix to go from  the PSF space to modulus coefficients space.
-     * @param q : the gradient of some criterion in the PSF space
-     * @return the gradient of this criterion in the modulus coefficients space.
+     * Copy a quantity packed on the pupil support in single precision in a
+     * full pupil array.
+     * @param packed the values on the pupil support
+     * @param full the destination array, allocated if null
+     * @return the full array
      */
-    public  DoubleShapedVector apply_J_modulus(final ShapedVector q)
-    {
-        int Ci;
-        final int Npix = Nx*Ny;
-        double defoc_scale = 0.;
-        final double PSFNorm = 1.0/(Nx*Ny*Nz);
-        final double NBeta =1./parameterCoefs[MODULUS].norm2();
-        Double1D JRho =  Double1D.create(parameterSpace[MODULUS].getShape());
-
-        JRho.fill(0.);
+    protected double[] unpack(float[] packed, double[] full){
+        if (full == null){
+            full = new double[Nx*Ny];
+        }else{
+            Arrays.fill(full, 0.);
+        }
+        for (int p = 0; p < nPupil; p++)
+        {
+            full[pupilIndex[p]] = packed[p];
+        }
+        return full;
+    }
 
-        if(isSingle()){
-            if(para){
-                int threads = Runtime.getRuntime().availableProcessors();
-                ExecutorService service = Executors.newFixedThreadPool(threads);
+    /**
+     * Copy the defocus function ψ on the pupil support.
+     */
+    protected void packPsi(){
+        if (isSingle()){
+            for (int p = 0; p < nPupil; p++)
+            {
+                psiSF[p] = (float) psi[pupilIndex[p]];
+            }
+        }else{
+            for (int p = 0; p < nPupil; p++)
+            {
+                psiS[p] = psi[pupilIndex[p]];
+            }
+        }
+    }
 
-                List<Future<ApplyJPhaOut>> futures = new ArrayList<>();
-                for ( int iz = 0; iz < Nz; iz++)
-                {
-                    final Float2D qz = ((Float3D) q.asShapedArray()).slice(iz);
-                    final int iz1 = iz;
-                    Callable<ApplyJPhaOut> callable = new Callable<ApplyJPhaOut>() {
-                        @Override
-                        public ApplyJPhaOut call() throws Exception {
-
-                            double defoc_scale=0;
-                            float Aq[] = new float[2*Npix];
-                            ApplyJPhaOut pout = new ApplyJPhaOut( parameterSpace[MODULUS].getNumber());
-
-                            if (iz1 > Nz/2)
-                            {
-                                defoc_scale = DEUXPI*(iz1 - Nz)*dz;
-                            }
-                            else
-                            {
-                                defoc_scale = DEUXPI*iz1*dz;
-                            }
-                            for (int iy = 0; iy < Ny; iy++){
-                                for (int ix = 0; ix < Nx; ix++){
-                                    int in = (ix+Nx*iy);
-                                    float qin =  qz.get(ix, iy);
-                                    Aq[2*in]=  ((Float4D) cpxPsf).get(0, ix, iy, iz1 )*qin;
-                                    Aq[2*in+1]=  ((Float4D) cpxPsf).get(1, ix, iy, iz1 )*qin;
-                                }
-                            }
+    /**
+     * Compute the point spread function
+     * <p>
+     * h_k(z) = |a_k(z)|² = |Σ_j F_{j,k} A_j(z)|²
+     */
 
-                            /* Fourier transform of the pupil function A(z) */
-                            FloatFFT_2D FFT2D = new FloatFFT_2D(Nx, Ny);
-                            FFT2D.complexForward(Aq);
-
-                            for (int j = 0; j < Ny; j++)
-                            {
-                                for (int i = 0; i < Nx; i++)
-                                {
-                                    int in = i + j*Nx;
-                                    if(maskPupil[in] )
-                                    {
-                                        double ph = phi[in] + defoc_scale*psi[in];
-                                        double jin = rho[in]*(Aq[2*in]*Math.sin(ph) + Aq[2*in + 1]*Math.cos(ph));
-                                        for (int k = 0; k < parameterSpace[MODULUS].getNumber(); k++)
-                                        {
-                                            int Ci= k*Npix + in;
-                                            pout.grd[k] += 2*PSFNorm*jin*Z[Ci]*(1 - Math.pow(parameterCoefs[MODULUS].get(k)*NBeta,2))*NBeta;
-                                        }
-                                    }
-                                }
-                            }
-                            return  pout;
-                        }
-                    };
-                    futures.add(service.submit(callable));
+    @Override
+    public void computePsf(){
+        if (PState>0)
+            return;
+        lockExecutor();
+        try {
+            updatePupil();
+            /* storage is kept between evaluations and only released by freeMem() */
+            if(isSingle()){
+                if (lowMemory){
+                    cpxPsf = null;
+                }else if (!(cpxPsf instanceof Float4D)){
+                    cpxPsf = Float4D.create(  cpxPsfShape);
                 }
-
-                service.shutdown();
-
-                for (Future<ApplyJPhaOut> future : futures) {
-                    ApplyJPhaOut pout;
-                    try {
-                        pout = future.get();
-                        for (int k = 0; k < parameterSpace[MODULUS].getNumber(); k++)
-                        {
-                            JRho.set(k,JRho.get(k)+ pout.grd[k]);
-                        }
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
+                if (!(psf instanceof Float3D)){
+                    psf = Float3D.create( psfShape);
                 }
             }else{
-                double J[] = new double[Ny*Nx];
-
-                FloatFFT_2D FFT2D = new FloatFFT_2D(Nx, Ny);
-                for (int iz = 0; iz < Nz; iz++)
-                {
-                    float Aq[] = new float[2*Npix];
-                    if (iz > Nz/2)
-                    {
-                        defoc_scale = DEUXPI*(iz - Nz)*dz;
-                    }
-                    else
-                    {
-                        defoc_scale = DEUXPI*iz*dz;
-                    }
-
-                    for (int iy = 0; iy < Ny; iy++){
-                        for (int ix = 0; ix < Nx; ix++){
-                            int in = (ix+Nx*iy);
-                            float qin =  ((Float3D) q.asShapedArray()).get(ix, iy, iz);
-                            Aq[2*in]=  ((Float4D) cpxPsf).get(0, ix, iy, iz )*qin;
-                            Aq[2*in+1]=  ((Float4D) cpxPsf).get(1, ix, iy, iz )*qin;
-                        }
-                    }
-
-                    FFT2D.complexForward(Aq);
-
-                    for (int in = 0; in < Npix; in++)
-                    {
-                        Ci = iz*Npix + in;
-                        double ph = phi[in] + defoc_scale*psi[in];
-                        J[in] = J[in] + Aq[2*in]*Math.cos(ph) - Aq[2*in + 1]*Math.sin(ph);
-                    }
+                if (lowMemory){
+                    cpxPsf = null;
+                }else if (!(cpxPsf instanceof Double4D)){
+                    cpxPsf = Double4D.create(  cpxPsfShape);
                 }
-                for (int k = 0; k < parameterSpace[MODULUS].getNumber(); k++)
-                {
-                    double tmp = 0;
-                    for (int in = 0; in < Npix; in++)
-                    {
-                        Ci = k*Npix + in;
-                        tmp += J[in]*Z[Ci];
-                    }
-                    JRho.set(k,2*PSFNorm*tmp*(1 - Math.pow(parameterCoefs[MODULUS].get(k)*NBeta,2))*NBeta);
+                if (!(psf instanceof Double3D)){
+                    psf = Double3D.create( psfShape);
                 }
             }
-        }else{
-            if(para){
-                int threads = Runtime.getRuntime().availableProcessors();
-                ExecutorService service = Executors.newFixedThreadPool(threads);
-
-                List<Future<double[]>> futures = new ArrayList<>();
-
-                for ( int iz = 0; iz < Nz; iz++)
-                {
-                    final Double2D qz = ((Double3D) q.asShapedArray()).slice(iz);
-                    final int iz1 = iz;
-                    Callable<double[]> callable = new Callable<double[]>() {
-                        @Override
-                        public double[] call() throws Exception {
-
-                            double defoc_scale=0;
-                            double[] Aq = new double[2*Npix];
-                            double[] J = new double[Npix];
-
-                            if (iz1 > Nz/2)
-                            {
-                                defoc_scale = DEUXPI*(iz1 - Nz)*dz;
-                            }
-                            else
-                            {
-                                defoc_scale = DEUXPI*iz1*dz;
-                            }
-                            for (int iy = 0; iy < Ny; iy++){
-                                for (int ix = 0; ix < Nx; ix++){
-                                    int in = (ix+Nx*iy);
-                                    double qin =  qz.get(ix, iy);
-
-                                    Aq[2*in]=  ((Double4D) cpxPsf).get(0, ix, iy, iz1 )*qin;
-                                    Aq[2*in+1]=  ((Double4D) cpxPsf).get(1, ix, iy, iz1 )*qin;
-                                }
-
-                            }
-
-                            /* Fourier transform of the pupil function A(z) */
-                            DoubleFFT_2D FFT2D = new DoubleFFT_2D(Nx, Ny);
-                            FFT2D.complexForward(Aq);
-
-                            for (int in = 0; in < Npix; in++)
-                            {
-                                double ph = phi[in] + defoc_scale*psi[in];
-                                J[in] = J[in] + Aq[2*in]*Math.cos(ph) - Aq[2*in + 1]*Math.sin(ph);
-                            }
-
-
-                            /*
-
-                            for (int j = 0; j < Ny; j++)
-                            {
-                                for (int i = 0; i < Nx; i++)
-                                {
-                                    int in = i + j*Nx;
-                                    if(maskPupil[in] )
-                                    {
-                                        double ph = phi[in] + defoc_scale*psi[in];
-                                        double jin = rho[in]*(Aq[2*in]*Math.sin(ph) + Aq[2*in + 1]*Math.cos(ph));
-                                        for (int k = 0; k < parameterSpace[MODULUS].getNumber(); k++)
-                                        {
-                                            int Ci= k*Npix + in;
-                                            pout.grd[k] += 2*PSFNorm*jin*Z[Ci]*(1 - Math.pow(parameterCoefs[MODULUS].get(k)*NBeta,2))*NBeta;
-
-                                        }
-                                    }
-                                }
-                            }
-
-
-                            return  pout;
-                             */
-                            return J;
-                        }
-                    };
-                    futures.add(service.submit(callable));
-                }
 
-                service.shutdown();
-                /*
-                for (Future<ApplyJPhaOut> future : futures) {
-                    ApplyJPhaOut pout;
-                    try {
-                        pout = future.get();
-                        for (int k = 0; k < parameterSpace[MODULUS].getNumber(); k++)
-                        {
-                            JRho.set(k,JRho.get(k)+ pout.grd[k]);
+            /* Without phase, the slice -z is the mirror of the slice z and only
+             * the slices 0 <= iz <= Nz/2 are computed */
+            final boolean symmetric = useSymmetry && isPhaseNull();
+            final int nSlices = (symmetric ? Nz/2 + 1 : Nz);
+            final boolean hankelPath = isHankelApplicable();
+            if (hankelPath) {
+                updateHankelProfiles();
+            }
+            hankelPsf = hankelPath;
+            fillingPhasorCache = usePhasorCache && !hankelPath;
+            phasorCacheFilled = false;
+            if (fillingPhasorCache) {
+                allocatePhasorCache();
+            }
+            if (usePhasorRecurrence && !hankelPath) {
+                computePsfByRuns(nSlices, symmetric);
+                phasorCacheFilled = fillingPhasorCache;
+                PState = 1;
+                return;
+            }
+            forSlices(nSlices, new ParallelRange.Loop() {
+                @Override
+                public void run(int start, int end) {
+                    for ( int iz = start; iz < end; iz++)
+                    {
+                        if (hankelPath) {
+                            computeHankelSlice(iz);
+                        } else {
+                            computePsfSlice(iz);
                         }
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }*/
-                for (Future<double[]> future : futures) {
-                    double[] jt;
-                    try {
-                        jt = future.get();
-                        for (int k = 0; k < parameterSpace[MODULUS].getNumber(); k++)
-                        {
-                            double tmp = 0;
-                            for (int in = 0; in < Npix; in++)
-                            {
-                                Ci = k*Npix + in;
-                                tmp += jt[in]*Z[Ci];
-                            }
-                            JRho.set(k,2*PSFNorm*tmp*(1 - Math.pow(parameterCoefs[MODULUS].get(k)*NBeta,2))*NBeta);
+                        if (symmetric) {
+                            mirrorPsfSlice(iz);
                         }
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
                     }
                 }
-            }else{
-                double J[] = new double[Ny*Nx];
-                double Aq[] = new double[2*Npix];
-                DoubleFFT_2D FFT2D = new DoubleFFT_2D(Nx, Ny);
-                for (int iz = 0; iz < Nz; iz++)
-                {
-                    if (iz > Nz/2)
-                    {
-                        defoc_scale = DEUXPI*(iz - Nz)*dz;
-                    }
-                    else
-                    {
-                        defoc_scale = DEUXPI*iz*dz;
-                    }
+            });
+            phasorCacheFilled = fillingPhasorCache;
+            PState = 1;
+        } finally {
+            unlockExecutor();
+        }
+    }
 
-                    for (int iy = 0; iy < Ny; iy++){
-                        for (int ix = 0; ix < Nx; ix++){
-                            int in = (ix+Nx*iy);
-                            double qin =  ((Double3D) q.asShapedArray()).get(ix, iy, iz);
-                            Aq[2*in]=  ((Double4D) cpxPsf).get(0, ix, iy, iz )*qin;
-                            Aq[2*in+1]=  ((Double4D) cpxPsf).get(1, ix, iy, iz )*qin;
+    /**
+     * Compute the slices 0 to nSlices-1 of the PSF by runs of consecutive
+     * slices with the phasor recurrence. The runs are at most PHASOR_RUN
+     * slices long and short enough to give a task to each thread.
+     * @param nSlices number of slices to compute
+     * @param symmetric true if the other slices are mirrored from them
+     */
+    private void computePsfByRuns(int nSlices, final boolean symmetric)
+    {
+        updatePhasorRotation();
+        int threads = sliceThreads(nSlices);
+        int length = (nSlices + threads - 1)/threads;
+        length = Math.max(2, Math.min(PHASOR_RUN, length));
+        /* bounds of the runs, the run r is bounds[r] <= iz < bounds[r+1] */
+        final List<Integer> bounds = new ArrayList<>();
+        for (int iz = 0; iz < nSlices; )
+        {
+            bounds.add(iz);
+            int end = Math.min(iz + length, nSlices);
+            if ((iz <= Nz/2) && (end > Nz/2 + 1))
+            {
+                end = Nz/2 + 1;
+            }
+            iz = end;
+        }
+        bounds.add(nSlices);
+        forSlices(bounds.size() - 1, new ParallelRange.Loop() {
+            @Override
+            public void run(int start, int end) {
+                for (int r = start; r < end; r++) {
+                    int iz0 = bounds.get(r);
+                    int iz1 = bounds.get(r + 1);
+                    computePsfRun(iz0, iz1);
+                    if (symmetric) {
+                        for (int k = iz0; k < iz1; k++) {
+                            mirrorPsfSlice(k);
                         }
                     }
+                }
+            }
+        });
+    }
 
-                    FFT2D.complexForward(Aq);
+    /**
+     * Compute the slice iz of the PSF and of its complex amplitude.
+     * <p>
+     * The pupil function A(z) is built in a per-thread work buffer and the
+     * results are written directly in the backing storage of cpxPsf and psf
+     * so that no large array is allocated.
+     * @param iz index of the slice
+     */
+    private void computePsfSlice(int iz)
+    {
+        double defoc_scale;
 
-                    for (int in = 0; in < Npix; in++)
-                    {
-                        Ci = iz*Npix + in;
-                        double ph = phi[in] + defoc_scale*psi[in];
-                        J[in] = J[in] + Aq[2*in]*Math.cos(ph) - Aq[2*in + 1]*Math.sin(ph);
-                    }
+        if (iz > Nz/2)
+        {
+            defoc_scale = DEUXPI*(iz - Nz)*dz;
+        }
+        else
+        {
+            defoc_scale = DEUXPI*iz*dz;
+        }
+
+        if(isSingle()){
+            float[] A = floatBuffer();
+            if (fillingPhasorCache) {
+                float[] P = phasorCacheF[iz];
+                Arrays.fill(A, 0.f);
+                for (int p = 0; p < nPupil; p++)
+                {
+                    int in = pupilIndex[p];
+                    double phasePupil = phiSF[p] + defoc_scale*psiSF[p];
+                    double cos = Math.cos(phasePupil);
+                    double sin = Math.sin(phasePupil);
+                    P[2*p] = (float) cos;
+                    P[2*p + 1] = (float) sin;
+                    A[2*in] = (float) (rhoSF[p]*cos);
+                    A[2*in + 1] = (float) (rhoSF[p]*sin);
                 }
-                for (int k = 0; k < parameterSpace[MODULUS].getNumber(); k++)
+            } else {
+                fillPupil(A, pupilIndex, rhoSF, phiSF, psiSF, defoc_scale);
+            }
+            transformSlice(A, iz);
+        }else{
+            double[] A = doubleBuffer();
+            if (fillingPhasorCache) {
+                double[] P = phasorCache[iz];
+                Arrays.fill(A, 0.);
+                for (int p = 0; p < nPupil; p++)
                 {
-                    double tmp = 0;
-                    for (int in = 0; in < Npix; in++)
-                    {
-                        Ci = k*Npix + in;
-                        tmp += J[in]*Z[Ci];
-                    }
-                    JRho.set(k,2*PSFNorm*tmp*(1 - Math.pow(parameterCoefs[MODULUS].get(k)*NBeta,2))*NBeta);
+                    int in = pupilIndex[p];
+                    double phasePupil = phiS[p] + defoc_scale*psiS[p];
+                    P[2*p] = Math.cos(phasePupil);
+                    P[2*p + 1] = Math.sin(phasePupil);
+                    A[2*in] = rhoS[p]*P[2*p];
+                    A[2*in + 1] = rhoS[p]*P[2*p + 1];
                 }
+            } else {
+                fillPupil(A, pupilIndex, rhoS, phiS, psiS, defoc_scale);
             }
+            transformSlice(A, iz);
         }
-        return parameterSpace[MODULUS].create(JRho);
     }
 
-
     /**
-     * Apply the Jacobian matrix to go from  the PSF space to phase coefficients space.
-     * @param q : the gradient of some criterion in the PSF space
-     * @return the gradient of this criterion in the phase coefficients space.
+     * Allocate the phasor cache for the current pupil support and precision.
      */
-    public DoubleShapedVector apply_J_phase(ShapedVector q)
+    private void allocatePhasorCache()
     {
-        int Ci;
-        final int Npix = Nx*Ny;
-        final double PSFNorm = 1.0/(Nx*Ny*Nz);
-        Double1D JPhi =  Double1D.create(parameterSpace[PHASE].getShape());
-        JPhi.fill(0.);
-        if(isSingle()){
-            if(para){
-                int threads = Runtime.getRuntime().availableProcessors();
-                ExecutorService service = Executors.newFixedThreadPool(threads);
-
-                List<Future<ApplyJPhaOut>> futures = new ArrayList<>();
-                for ( int iz = 0; iz < Nz; iz++)
-                {
-                    final Float2D qz = ((Float3D) q.asShapedArray()).slice(iz);
-                    final int iz1 = iz;
-                    Callable<ApplyJPhaOut> callable = new Callable<ApplyJPhaOut>() {
-                        @Override
-                        public ApplyJPhaOut call() throws Exception {
-
-                            double defoc_scale=0;
-                            float Aq[] = new float[2*Npix];
-                            ApplyJPhaOut pout = new ApplyJPhaOut( parameterSpace[PHASE].getNumber());
-
-                            if (iz1 > Nz/2)
-                            {
-                                defoc_scale = DEUXPI*(iz1 - Nz)*dz;
-                            }
-                            else
-                            {
-                                defoc_scale = DEUXPI*iz1*dz;
-                            }
-                            for (int iy = 0; iy < Ny; iy++){
-                                for (int ix = 0; ix < Nx; ix++){
-                                    int in = (ix+Nx*iy);
-                                    float qin =  qz.get(ix, iy);
-                                    Aq[2*in]=  ((Float4D) cpxPsf).get(0, ix, iy, iz1 )*qin;
-                                    Aq[2*in+1]=  ((Float4D) cpxPsf).get(1, ix, iy, iz1 )*qin;
-                                }
-                            }
+        if (isSingle()) {
+            phasorCache = null;
+            if ((phasorCacheF == null) || (phasorCacheF.length != Nz) || (phasorCacheF[0].length != 2*nPupil)) {
+                phasorCacheF = new float[Nz][2*nPupil];
+            }
+        } else {
+            phasorCacheF = null;
+            if ((phasorCache == null) || (phasorCache.length != Nz) || (phasorCache[0].length != 2*nPupil)) {
+                phasorCache = new double[Nz][2*nPupil];
+            }
+        }
+    }
 
-                            /* Fourier transform of the pupil function A(z) */
-                            FloatFFT_2D FFT2D = new FloatFFT_2D(Nx, Ny);
-                            FFT2D.complexForward(Aq);
-
-                            for (int j = 0; j < Ny; j++)
-                            {
-                                for (int i = 0; i < Nx; i++)
-                                {
-                                    int in = i + j*Nx;
-                                    if(maskPupil[in] )
-                                    {
-                                        double ph = phi[in] + defoc_scale*psi[in];
-                                        double jin = rho[in]*(Aq[2*in]*Math.sin(ph) + Aq[2*in + 1]*Math.cos(ph));
-                                        for (int k = 0; k < parameterSpace[PHASE].getNumber(); k++)
-                                        {
-                                            int Ci;
-
-                                            if(radial){
-                                                Ci= (k+1)*Npix + in;
-                                            }else{
-                                                Ci= (k+3)*Npix + in;
-                                            }
-                                            pout.grd[k] -= 2*PSFNorm*jin*Z[Ci];
-                                        }
-                                    }
-                                }
-                            }
-                            return  pout;
-                        }
-                    };
-                    futures.add(service.submit(callable));
+    /**
+     * Compute the slices iz0 to iz1-1 of the PSF and of its complex amplitude
+     * by the phasor recurrence.
+     * <p>
+     * The slices being regularly spaced, the phasor of a pupil pixel at the
+     * slice iz+1 is exp(iΦ(z+dz)) = exp(iΦ(z)).exp(i.2π.dz.ψ): it is computed
+     * from the phasor of the slice iz by a complex multiplication with the
+     * rotation computed once by {@link #computePsf()}. The phasor is only
+     * evaluated by trigonometric functions at the first slice of the run. The
+     * runs are short and do not cross the jump of z between Nz/2 and Nz/2+1,
+     * which bounds the drift of the recurrence.
+     * @param iz0 index of the first slice
+     * @param iz1 index after the last slice
+     */
+    private void computePsfRun(int iz0, int iz1)
+    {
+        final double[] rot = phasorRotation;
+        final double[] P = buffers.getDouble(PHASOR_BUFFER, 2*nPupil);
+        double defoc_scale;
+        if (iz0 > Nz/2)
+        {
+            defoc_scale = DEUXPI*(iz0 - Nz)*dz;
+        }
+        else
+        {
+            defoc_scale = DEUXPI*iz0*dz;
+        }
+        for (int p = 0; p < nPupil; p++)
+        {
+            double phasePupil = (isSingle() ? phiSF[p] + defoc_scale*psiSF[p] : phiS[p] + defoc_scale*psiS[p]);
+            P[2*p] = Math.cos(phasePupil);
+            P[2*p + 1] = Math.sin(phasePupil);
+        }
+        for (int iz = iz0; iz < iz1; iz++)
+        {
+            if (iz > iz0)
+            {
+                for (int p = 0; p < nPupil; p++)
+                {
+                    double re = P[2*p]*rot[2*p] - P[2*p + 1]*rot[2*p + 1];
+                    double im = P[2*p]*rot[2*p + 1] + P[2*p + 1]*rot[2*p];
+                    P[2*p] = re;
+                    P[2*p + 1] = im;
                 }
-
-                service.shutdown();
-
-                for (Future<ApplyJPhaOut> future : futures) {
-                    ApplyJPhaOut pout;
-                    try {
-                        pout = future.get();
-                        for (int k = 0; k < parameterSpace[PHASE].getNumber(); k++)
-                        {
-                            JPhi.set(k,JPhi.get(k)+ pout.grd[k]);
-                        }
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
+            }
+            if (fillingPhasorCache)
+            {
+                if (isSingle()) {
+                    float[] C = phasorCacheF[iz];
+                    for (int k = 0; k < 2*nPupil; k++)
+                    {
+                        C[k] = (float) P[k];
                     }
+                } else {
+                    System.arraycopy(P, 0, phasorCache[iz], 0, 2*nPupil);
+                }
+            }
+            if(isSingle()){
+                float[] A = floatBuffer();
+                Arrays.fill(A, 0.f);
+                for (int p = 0; p < nPupil; p++)
+                {
+                    int in = pupilIndex[p];
+                    A[2*in] = (float) (rhoSF[p]*P[2*p]);
+                    A[2*in + 1] = (float) (rhoSF[p]*P[2*p + 1]);
                 }
+                transformSlice(A, iz);
             }else{
-                double J[] = new double[Ny*Nx];
-                float[] Aq = new float[2*Npix];
-                FloatFFT_2D FFT2D = new FloatFFT_2D(Nx, Ny);
-                for (int iz = 0; iz < Nz; iz++)
+                double[] A = doubleBuffer();
+                Arrays.fill(A, 0.);
+                for (int p = 0; p < nPupil; p++)
                 {
+                    int in = pupilIndex[p];
+                    A[2*in] = rhoS[p]*P[2*p];
+                    A[2*in + 1] = rhoS[p]*P[2*p + 1];
+                }
+                transformSlice(A, iz);
+            }
+        }
+    }
 
-                    double defoc_scale=0.;
-                    if (iz > Nz/2)
-                    {
-                        defoc_scale = DEUXPI*(iz - Nz)*dz;
-                    }
-                    else
-                    {
-                        defoc_scale = DEUXPI*iz*dz;
-                    }
+    /**
+     * Compute the rotation exp(i.2π.dz.ψ) of the phasors between two
+     * consecutive slices on the pupil support.
+     */
+    private void updatePhasorRotation()
+    {
+        if ((phasorRotation == null) || (phasorRotation.length != 2*nPupil))
+        {
+            phasorRotation = new double[2*nPupil];
+        }
+        final double scale = DEUXPI*dz;
+        for (int p = 0; p < nPupil; p++)
+        {
+            double angle = scale*(isSingle() ? psiSF[p] : psiS[p]);
+            phasorRotation[2*p] = Math.cos(angle);
+            phasorRotation[2*p + 1] = Math.sin(angle);
+        }
+    }
 
-                    for (int iy = 0; iy < Ny; iy++){
-                        for (int ix = 0; ix < Nx; ix++){
-                            int in = (ix+Nx*iy);
-                            float qin =  ((Float3D) q.asShapedArray()).get(ix, iy, iz);
-                            Aq[2*in]=  ((Float4D) cpxPsf).get(0, ix, iy, iz )*qin;
-                            Aq[2*in+1]=  ((Float4D) cpxPsf).get(1, ix, iy, iz )*qin;
-                        }
+    /**
+     * Fourier transform the pupil function A(z) of the slice iz and store
+     * the slice of the PSF and the conjugate of its complex amplitude.
+     * @param A the pupil function, overwritten
+     * @param iz index of the slice
+     */
+    private void transformSlice(float[] A, int iz)
+    {
+        final int Npix = Nx*Ny;
+        final float PSFnorm = (float) (1.0/(Nx*Ny*Nz));
+        float[] cpx = (cpxPsf == null ? null : ((Float4D) cpxPsf).getData());
+        float[] h = ((Float3D) psf).getData();
+        /* Fourier transform of the pupil function A(z) */
+        FFTPlans.getFloatFFT2D(Nx, Ny).complexForward(A);
+
+        int offA = 2*Npix*iz;
+        int offPsf = Npix*iz;
+        for (int in = 0; in < Npix; in++)
+        {
+            if (cpx != null) {
+                cpx[offA + 2*in] = A[2*in];
+                cpx[offA + 2*in + 1] = -A[2*in + 1]; // store conjugate of A
+            }
+            h[offPsf + in] = (A[2*in]*A[2*in] + A[2*in+1]*A[2*in+1])*PSFnorm ;
+        }
+    }
 
-                    }
+    /**
+     * Fourier transform the pupil function A(z) of the slice iz and store
+     * the slice of the PSF and the conjugate of its complex amplitude.
+     * @param A the pupil function, overwritten
+     * @param iz index of the slice
+     */
+    private void transformSlice(double[] A, int iz)
+    {
+        final int Npix = Nx*Ny;
+        final double PSFnorm = 1.0/(Nx*Ny*Nz);
+        double[] cpx = (cpxPsf == null ? null : ((Double4D) cpxPsf).getData());
+        double[] h = ((Double3D) psf).getData();
+        /* Fourier transform of the pupil function A(z) */
+        FFTPlans.getDoubleFFT2D(Nx, Ny).complexForward(A);
+
+        int offA = 2*Npix*iz;
+        int offPsf = Npix*iz;
+        for (int in = 0; in < Npix; in++)
+        {
+            if (cpx != null) {
+                cpx[offA + 2*in] = A[2*in];
+                cpx[offA + 2*in + 1] = -A[2*in + 1]; // store conjugate of A
+            }
+            h[offPsf + in] = (A[2*in]*A[2*in] + A[2*in+1]*A[2*in+1])*PSFnorm ;
+        }
+    }
+
+    /**
+     * Build the pupil function A(z) = ρ.exp(i(φ + 2π.z.ψ)) in a complex work
+     * buffer from the quantities packed on the pupil support.
+     * @param A the work buffer of 2.Nx.Ny values
+     * @param index pixels of the pupil support
+     * @param rho modulus on the support
+     * @param phi phase on the support
+     * @param psi defocus function on the support
+     * @param defoc_scale 2π.z
+     */
+    private static void fillPupil(float[] A, int[] index, float[] rho, float[] phi, float[] psi, double defoc_scale)
+    {
+        Arrays.fill(A, 0.f);
+        for (int p = 0; p < index.length; p++)
+        {
+            int in = index[p];
+            double phasePupil = phi[p] + defoc_scale*psi[p];
+            A[2*in] = (float) (rho[p]*Math.cos(phasePupil));
+            A[2*in + 1] = (float) (rho[p]*Math.sin(phasePupil));
+        }
+    }
 
-                    FFT2D.complexForward(Aq);
+    /**
+     * Build the pupil function A(z) = ρ.exp(i(φ + 2π.z.ψ)) in a complex work
+     * buffer from the quantities packed on the pupil support.
+     * @param A the work buffer of 2.Nx.Ny values
+     * @param index pixels of the pupil support
+     * @param rho modulus on the support
+     * @param phi phase on the support
+     * @param psi defocus function on the support
+     * @param defoc_scale 2π.z
+     */
+    private static void fillPupil(double[] A, int[] index, double[] rho, double[] phi, double[] psi, double defoc_scale)
+    {
+        Arrays.fill(A, 0.);
+        for (int p = 0; p < index.length; p++)
+        {
+            int in = index[p];
+            double phasePupil = phi[p] + defoc_scale*psi[p];
+            A[2*in] = rho[p]*Math.cos(phasePupil);
+            A[2*in + 1] = rho[p]*Math.sin(phasePupil);
+        }
+    }
 
-                    for (int in = 0; in < Npix; in++)
-                    {
-                        Ci = iz*Npix + in;
-                        double ph = phi[in] + defoc_scale*psi[in];
-                        J[in] = J[in] + rho[in]*(Aq[2*in]*Math.sin(ph) + Aq[2*in + 1]*Math.cos(ph));
+    /**
+     * Compute the PSFs of several sets of parameters with the geometry of
+     * this model (shape, sampling, wavelength, numerical aperture and Zernike
+     * basis).
+     * <p>
+     * The pupil of every set is built first, then all the (set, slice) pairs
+     * are computed together in the executor of the model. Only the PSFs are
+     * computed, not their complex amplitudes, always with the FFT engine. The
+     * parameters of the model are left unchanged, as well as its current
+     * PSF.
+     * @param defocus defocus parameters of each set (see {@link #setDefocus(DoubleShapedVector)}),
+     *        null to use those of the model
+     * @param phase phase coefficients of each set, null to use those of the model
+     * @param modulus modulus coefficients of each set, null to use those of the model
+     * @return the PSFs of the sets
+     */
+    public Array3D[] computePsfs(double[][] defocus, double[][] phase, double[][] modulus)
+    {
+        lockExecutor();
+        try {
+            int nSets = -1;
+            for (double[][] sets : new double[][][] {defocus, phase, modulus}) {
+                if (sets != null) {
+                    if ((nSets >= 0) && (sets.length != nSets)) {
+                        throw new IllegalArgumentException("All the parameters should have the same number of sets");
                     }
+                    nSets = sets.length;
                 }
-                for (int k = 0; k < parameterSpace[PHASE].getNumber(); k++)
-                {
-                    double tmp = 0;
-                    for (int in = 0; in < Npix; in++)
-                    {
-                        Ci = k*Npix + in;
-                        if(radial){
-                            tmp += J[in]*Z[Ci + 1*Npix];
-                        }else{
-                            tmp += J[in]*Z[Ci + 3*Npix];
-                        }
-                    }
-                    JPhi.set(k, -2*PSFNorm*tmp);
+            }
+            if (nSets < 0) {
+                nSets = 1;
+            }
+
+            /* pupil of each set */
+            final BatchPupil[] pupils = new BatchPupil[nSets];
+            final DoubleShapedVector[] saved = parameterCoefs.clone();
+            final int savedPState = PState;
+            try {
+                for (int i = 0; i < nSets; i++) {
+                    /* the parameters not given are those of the model, not
+                     * those of the previous set */
+                    setDefocus(((defocus != null) && (defocus[i] != null)) ?
+                            wrapParameters(DEFOCUS, defocus[i]) : saved[DEFOCUS]);
+                    restorePhase(((phase != null) && (phase[i] != null)) ?
+                            wrapParameters(PHASE, phase[i]) : saved[PHASE]);
+                    setModulus(((modulus != null) && (modulus[i] != null)) ?
+                            wrapParameters(MODULUS, modulus[i]) : saved[MODULUS]);
+                    updatePupil();
+                    pupils[i] = new BatchPupil();
                 }
+            } finally {
+                setDefocus(saved[DEFOCUS]);
+                restorePhase(saved[PHASE]);
+                setModulus(saved[MODULUS]);
+                updatePupil();
+                /* the PSF of the model has not been touched */
+                PState = savedPState;
             }
-        }else{
-            if(para){
-                int threads = Runtime.getRuntime().availableProcessors();
-                ExecutorService service = Executors.newFixedThreadPool(threads);
+            return computeBatch(pupils);
+        } finally {
+            unlockExecutor();
+        }
+    }
 
-                List<Future<ApplyJPhaOut>> futures = new ArrayList<>();
-                for ( int iz = 0; iz < Nz; iz++)
-                {
-                    final Double2D qz = ((Double3D) q.asShapedArray()).slice(iz);
-                    final int iz1 = iz;
-                    Callable<ApplyJPhaOut> callable = new Callable<ApplyJPhaOut>() {
-                        @Override
-                        public ApplyJPhaOut call() throws Exception {
-
-                            double defoc_scale=0;
-                            double Aq[] = new double[2*Npix];
-                            ApplyJPhaOut pout = new ApplyJPhaOut( parameterSpace[PHASE].getNumber());
-                            if (iz1 > Nz/2)
-                            {
-                                defoc_scale = DEUXPI*(iz1 - Nz)*dz;
-                            }
-                            else
-                            {
-                                defoc_scale = DEUXPI*iz1*dz;
-                            }
-                            for (int iy = 0; iy < Ny; iy++){
-                                for (int ix = 0; ix < Nx; ix++){
-                                    int in = (ix+Nx*iy);
-                                    double qin =  qz.get(ix, iy);
-                                    Aq[2*in]=  ((Double4D) cpxPsf).get(0, ix, iy, iz1 )*qin;
-                                    Aq[2*in+1]=  ((Double4D) cpxPsf).get(1, ix, iy, iz1 )*qin;
-                                }
-                            }
+    /**
+     * Compute the PSFs of emitters at several depths in a sample of
+     * refractive index ns, the immersion medium being of index ni.
+     * <p>
+     * The refractive index mismatch adds to the phase of the pupil the
+     * aberration
+     * <p>
+     * φ_d = φ + 2π.d.(sqrt((ns/λ)² - κ²) - sqrt((ni/λ)² - κ²))
+     * <p>
+     * where κ is the distance to the optical axis in the pupil. Where
+     * κ &gt; ns/λ, the wave is evanescent in the sample and its modulus is
+     * damped by exp(-2π.|d|.sqrt(κ² - (ns/λ)²)) instead. All the depth
+     * independent quantities are those of the model. The (depth, slice)
+     * pairs are computed together as in
+     * {@link #computePsfs(double[][], double[][], double[][])}.
+     * @param depths depths of the emitters below the interface in meter
+     * @param ns refractive index of the sample
+     * @return the PSFs of the emitters
+     */
+    public Array3D[] computeDepthPsfs(double[] depths, double ns)
+    {
+        lockExecutor();
+        try {
+            updatePupil();
+            final BatchPupil base = new BatchPupil();
+            final double lambda_ns2 = Math.pow(ns/lambda, 2);
+            final double lambda_ni2 = lambda_ni*lambda_ni;
+            BatchPupil[] pupils = new BatchPupil[depths.length];
+            for (int i = 0; i < depths.length; i++) {
+                pupils[i] = new BatchPupil(base);
+                double d = depths[i];
+                for (int p = 0; p < base.index.length; p++) {
+                    double psip = (isSingle() ? base.psiF[p] : base.psi[p]);
+                    /* (ns/λ)² - κ² with κ² = (ni/λ)² - ψ² */
+                    double q = lambda_ns2 - lambda_ni2 + psip*psip;
+                    if (q >= 0) {
+                        pupils[i].addPhase(p, DEUXPI*d*(Math.sqrt(q) - psip));
+                    } else {
+                        pupils[i].scaleModulus(p, Math.exp(-DEUXPI*Math.abs(d)*Math.sqrt(-q)));
+                    }
+                }
+            }
+            return computeBatch(pupils);
+        } finally {
+            unlockExecutor();
+        }
+    }
 
-                            /* Fourier transform of the pupil function A(z) */
-                            DoubleFFT_2D FFT2D = new DoubleFFT_2D(Nx, Ny);
-                            FFT2D.complexForward(Aq);
-
-                            for (int j = 0; j < Ny; j++)
-                            {
-                                for (int i = 0; i < Nx; i++)
-                                {
-                                    int in = i + j*Nx;
-                                    if(maskPupil[in] )
-                                    {
-                                        double ph = phi[in] + defoc_scale*psi[in];
-                                        double jin = rho[in]*(Aq[2*in]*Math.sin(ph) + Aq[2*in + 1]*Math.cos(ph));
-                                        for (int k = 0; k < parameterSpace[PHASE].getNumber(); k++)
-                                        {
-                                            int Ci;
-                                            if(radial){
-                                                Ci= (k+1)*Npix + in;
-                                            }else{
-                                                Ci= (k+3)*Npix + in;
-                                            }
-                                            pout.grd[k] -= 2*PSFNorm*jin*Z[Ci];
-                                        }
-                                    }
-                                }
-                            }
-                            return  pout;
-                        }
-                    };
-                    futures.add(service.submit(callable));
+    /**
+     * Compute the PSFs of a batch of pupils, the (pupil, slice) pairs being
+     * computed together.
+     * @param pupils the pupils
+     * @return their PSFs
+     */
+    private Array3D[] computeBatch(final BatchPupil[] pupils)
+    {
+        final int nSets = pupils.length;
+        final Array3D[] psfs = new Array3D[nSets];
+        for (int i = 0; i < nSets; i++) {
+            psfs[i] = (isSingle() ? Float3D.create(psfShape) : Double3D.create(psfShape));
+        }
+        /* task k is the slice k%Nz of the set k/Nz */
+        forSlices(nSets*Nz, new ParallelRange.Loop() {
+            @Override
+            public void run(int start, int end) {
+                for (int k = start; k < end; k++) {
+                    computeBatchSlice(pupils[k/Nz], k%Nz, psfs[k/Nz]);
                 }
+            }
+        });
+        return psfs;
+    }
 
-                service.shutdown();
+    /**
+     * Set the phase coefficients, null for a null phase, without changing the
+     * number of phase coefficients.
+     * @param phase
+     */
+    private void restorePhase(DoubleShapedVector phase)
+    {
+        if (phase != null) {
+            setPhase(phase);
+        } else if (parameterCoefs[PHASE] != null) {
+            parameterCoefs[PHASE] = null;
+            phiCoefs = null;
+            dirty |= PHI;
+            invalidate();
+        }
+    }
 
-                for (Future<ApplyJPhaOut> future : futures) {
-                    ApplyJPhaOut pout;
-                    try {
-                        pout = future.get();
-                        for (int k = 0; k < parameterSpace[PHASE].getNumber(); k++)
-                        {
-                            JPhi.set(k,JPhi.get(k)+ pout.grd[k]);
-                        }
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }
-            }else{
-                double J[] = new double[Ny*Nx];
-                double[] Aq = new double[2*Npix];
-                DoubleFFT_2D FFT2D = new DoubleFFT_2D(Ny, Nx);
-                for (int iz = 0; iz < Nz; iz++)
-                {
+    /**
+     * @param flag DEFOCUS, PHASE or MODULUS
+     * @param values parameters of this group
+     * @return the parameters as a vector of the parameter space of the group
+     */
+    private DoubleShapedVector wrapParameters(int flag, double[] values)
+    {
+        if ((parameterSpace[flag] == null) || (parameterSpace[flag].getNumber() != values.length)) {
+            throw new IllegalArgumentException("Bad number of parameters");
+        }
+        return parameterSpace[flag].wrap(values.clone());
+    }
 
-                    double defoc_scale=0.;
-                    if (iz > Nz/2)
-                    {
-                        defoc_scale = DEUXPI*(iz - Nz)*dz;
-                    }
-                    else
-                    {
-                        defoc_scale = DEUXPI*iz*dz;
-                    }
+    /**
+     * Compute the slice iz of the PSF of a set of parameters of a batch.
+     * @param pupil pupil of the set
+     * @param iz index of the slice
+     * @param out PSF of the set
+     */
+    private void computeBatchSlice(BatchPupil pupil, int iz, Array3D out)
+    {
+        final int Npix = Nx*Ny;
+        final int offPsf = Npix*iz;
+        double defoc_scale;
+        if (iz > Nz/2)
+        {
+            defoc_scale = DEUXPI*(iz - Nz)*dz;
+        }
+        else
+        {
+            defoc_scale = DEUXPI*iz*dz;
+        }
+        if(isSingle()){
+            final float PSFnorm = (float) (1.0/(Nx*Ny*Nz));
+            float[] A = floatBuffer();
+            float[] h = ((Float3D) out).getData();
+            fillPupil(A, pupil.index, pupil.rhoF, pupil.phiF, pupil.psiF, defoc_scale);
+            FFTPlans.getFloatFFT2D(Nx, Ny).complexForward(A);
+            for (int in = 0; in < Npix; in++)
+            {
+                h[offPsf + in] = (A[2*in]*A[2*in] + A[2*in+1]*A[2*in+1])*PSFnorm ;
+            }
+        }else{
+            final double PSFnorm = 1.0/(Nx*Ny*Nz);
+            double[] A = doubleBuffer();
+            double[] h = ((Double3D) out).getData();
+            fillPupil(A, pupil.index, pupil.rho, pupil.phi, pupil.psi, defoc_scale);
+            FFTPlans.getDoubleFFT2D(Nx, Ny).complexForward(A);
+            for (int in = 0; in < Npix; in++)
+            {
+                h[offPsf + in] = (A[2*in]*A[2*in] + A[2*in+1]*A[2*in+1])*PSFnorm ;
+            }
+        }
+    }
 
-                    for (int iy = 0; iy < Ny; iy++){
-                        for (int ix = 0; ix < Nx; ix++){
-                            int in = (ix+Nx*iy);
-                            double qin =  ((Double3D) q.asShapedArray()).get(ix, iy, iz);
-                            Aq[2*in]=  ((Double4D) cpxPsf).get(0, ix, iy, iz )*qin;
-                            Aq[2*in+1]=  ((Double4D) cpxPsf).get(1, ix, iy, iz )*qin;
-                        }
+    /**
+     * Copy of the current pupil packed on its support, in the precision of
+     * the model.
+     */
+    private class BatchPupil {
+        final int[] index;
+        final double[] rho;
+        final double[] phi;
+        final double[] psi;
+        final float[] rhoF;
+        final float[] phiF;
+        final float[] psiF;
+
+        BatchPupil(){
+            index = pupilIndex.clone();
+            rho = (rhoS == null ? null : rhoS.clone());
+            phi = (phiS == null ? null : phiS.clone());
+            psi = (psiS == null ? null : psiS.clone());
+            rhoF = (rhoSF == null ? null : rhoSF.clone());
+            phiF = (phiSF == null ? null : phiSF.clone());
+            psiF = (psiSF == null ? null : psiSF.clone());
+        }
 
-                    }
+        /* copy of the modulus and phase of another pupil, sharing its support and defocus */
+        BatchPupil(BatchPupil base){
+            index = base.index;
+            psi = base.psi;
+            psiF = base.psiF;
+            rho = (base.rho == null ? null : base.rho.clone());
+            phi = (base.phi == null ? null : base.phi.clone());
+            rhoF = (base.rhoF == null ? null : base.rhoF.clone());
+            phiF = (base.phiF == null ? null : base.phiF.clone());
+        }
 
-                    FFT2D.complexForward(Aq);
+        void addPhase(int p, double value){
+            if (phiF != null) {
+                phiF[p] += value;
+            } else {
+                phi[p] += value;
+            }
+        }
 
-                    for (int in = 0; in < Npix; in++)
-                    {
-                        Ci = iz*Npix + in;
-                        double ph = phi[in] + defoc_scale*psi[in];
-                        J[in] = J[in] + rho[in]*(Aq[2*in]*Math.sin(ph) + Aq[2*in + 1]*Math.cos(ph));
-                    }
-                }
+        void scaleModulus(int p, double value){
+            if (rhoF != null) {
+                rhoF[p] *= value;
+            } else {
+                rho[p] *= value;
+            }
+        }
+    }
 
+    /**
+     * Update the components of the pupil (ψ, ρ and φ) whose parameters
+     * changed since the last PSF computation. ψ comes first as it may change
+     * the pupil support.
+     */
+    protected void updatePupil() {
+        if ((rhoSF != null) != isSingle()) {
+            /* the precision changed: repack all the pupil quantities */
+            updatePupilSupport();
+        }
+        if ((dirty & PSI) != 0) {
+            computeDefocus();
+        }
+        if ((dirty & RHO) != 0) {
+            updateRho();
+        }
+        if ((dirty & PHI) != 0) {
+            updatePhi();
+        }
+    }
 
-                for (int k = 0; k < parameterSpace[PHASE].getNumber(); k++)
-                {
-                    double tmp = 0;
-                    for (int in = 0; in < Npix; in++)
-                    {
-                        Ci = k*Npix + in;
-                        if(radial){
-                            tmp += J[in]*Z[Ci + 1*Npix];
-                        }else{
-                            tmp += J[in]*Z[Ci + 3*Npix];
-                        }
+    /**
+     * Check whether the radial engine can be used: it must be enabled, the
+     * model radial and the pupil centered (δx = δy = 0).
+     * @return true if the PSF is computed by Hankel transforms
+     */
+    private boolean isHankelApplicable() {
+        return useHankel && radial && (deltaX == 0.) && (deltaY == 0.);
+    }
+
+    /**
+     * Build the Hankel transform and the resampling tables if needed and
+     * sample the pupil quantities at its frequencies.
+     * <p>
+     * The radii are sampled at about dxy/2 up to Nx.dxy, beyond the corners of
+     * the PSF, and the frequencies up to the pupil radius. As the model is
+     * radial, ρ and φ are linearly interpolated along the kx axis while ψ is
+     * computed exactly.
+     */
+    private void updateHankelProfiles() {
+        if (hankel == null) {
+            hankel = new HankelTransform(1/dxy, Nx*dxy, radius);
+            double[] r = hankel.getRadii();
+            hankelIndex = new int[Nx*Ny];
+            hankelWeight = new double[Nx*Ny];
+            for (int iy = 0; iy < Ny; iy++) {
+                double y = (iy > Ny/2 ? iy - Ny : iy)*dxy;
+                for (int ix = 0; ix < Nx; ix++) {
+                    double x = (ix > Nx/2 ? ix - Nx : ix)*dxy;
+                    double rxy = Math.sqrt(x*x + y*y);
+                    int m = Arrays.binarySearch(r, rxy);
+                    if (m < 0) {
+                        m = -m - 2;
                     }
-                    JPhi.set(k, -2*PSFNorm*tmp);
+                    m = Math.min(m, r.length - 2);
+                    hankelIndex[ix + Nx*iy] = m;
+                    hankelWeight[ix + Nx*iy] = (rxy - r[m])/(r[m + 1] - r[m]);
                 }
             }
+            int nK = hankel.getFrequencies().length;
+            rhoK = new double[nK];
+            phiK = new double[nK];
+            psiK = new double[nK];
+            axisIndex = new int[nK];
+            axisWeight = new double[nK];
+        }
+        /* last pixel of the support along the kx axis */
+        int last = 0;
+        while ((last + 1 <= Nx/2) && maskPupil[last + 1]) {
+            last++;
+        }
+        double[] kappa = hankel.getFrequencies();
+        double scale_x = Nx*dxy;
+        double lambda_ni2 = lambda_ni*lambda_ni;
+        for (int k = 0; k < kappa.length; k++) {
+            double q = lambda_ni2 - kappa[k]*kappa[k];
+            if (q < 0.0) {
+                axisIndex[k] = -1;
+                rhoK[k] = 0;
+                phiK[k] = 0;
+                psiK[k] = 0;
+                continue;
+            }
+            psiK[k] = Math.sqrt(q);
+            double t = kappa[k]*scale_x;
+            int i = (int) t;
+            double w = 0;
+            if (i >= last) {
+                i = last;
+            } else {
+                w = t - i;
+            }
+            axisIndex[k] = i;
+            axisWeight[k] = w;
+            rhoK[k] = (1 - w)*rho[i] + w*rho[i + 1];
+            phiK[k] = (1 - w)*phi[i] + w*phi[i + 1];
         }
-        return parameterSpace[PHASE].create(JPhi );
     }
 
-
     /**
-     * Apply the Jacobian matrix to go from  the PSF space to defocus coefficients space.
-     * @param q : the gradient of some criterion in the PSF space
-     * @return the gradient of this criterion in the defocus coefficients space.
+     * Compute the slice iz of the PSF and of its complex amplitude with the
+     * radial engine.
+     * <p>
+     * The amplitude is the Hankel transform of A(z) scaled by (Nx.dxy)² to
+     * match the discrete Fourier transform, linearly interpolated at the
+     * radius of each pixel.
+     * @param iz index of the slice
      */
-    public DoubleShapedVector apply_J_defocus(ShapedVector q)
+    private void computeHankelSlice(int iz)
     {
-        double scale_x = 1/(Nx*dxy);
-        double scale_y = 1/(Ny*dxy);
-        double d0 = 0, d1 = 0, d2 = 0;
-        final double[] rx = new double[Nx];
-        final double[] ry = new double[Ny];
-        final int Npix =  Nx*Ny;
-        final double PSFNorm = 1.0/(Nx*Ny*Nz);
-        double[] grd = new double[parameterSpace[DEFOCUS].getNumber()];
+        final int Npix = Nx*Ny;
+        final double scale = (Nx*dxy)*(Ny*dxy);
+        final double[] g = hankelAmplitude(iz);
 
-        for(int nx = 0; nx < Nx; nx++)
-        {
-            if(nx > Nx/2)
+        final double PSFnorm = 1.0/(Nx*Ny*Nz);
+        int offA = 2*Npix*iz;
+        int offPsf = Npix*iz;
+        if(isSingle()){
+            float[] cpx = (cpxPsf == null ? null : ((Float4D) cpxPsf).getData());
+            float[] h = ((Float3D) psf).getData();
+            for (int in = 0; in < Npix; in++)
             {
-                rx[nx] = (nx - Nx)*scale_x - deltaX;
+                int m = hankelIndex[in];
+                double w = hankelWeight[in];
+                double re = scale*((1 - w)*g[2*m] + w*g[2*m + 2]);
+                double im = scale*((1 - w)*g[2*m + 1] + w*g[2*m + 3]);
+                if (cpx != null) {
+                    cpx[offA + 2*in] = (float) re;
+                    cpx[offA + 2*in + 1] = (float) -im; // store conjugate of A
+                }
+                h[offPsf + in] = (float) ((re*re + im*im)*PSFnorm);
             }
-            else
+        }else{
+            double[] cpx = (cpxPsf == null ? null : ((Double4D) cpxPsf).getData());
+            double[] h = ((Double3D) psf).getData();
+            for (int in = 0; in < Npix; in++)
             {
-                rx[nx]  = nx*scale_x - deltaX;
+                int m = hankelIndex[in];
+                double w = hankelWeight[in];
+                double re = scale*((1 - w)*g[2*m] + w*g[2*m + 2]);
+                double im = scale*((1 - w)*g[2*m + 1] + w*g[2*m + 3]);
+                if (cpx != null) {
+                    cpx[offA + 2*in] = re;
+                    cpx[offA + 2*in + 1] = -im; // store conjugate of A
+                }
+                h[offPsf + in] = (re*re + im*im)*PSFnorm;
             }
         }
+    }
 
-        for(int ny = 0; ny < Ny; ny++)
+    /**
+     * Compute the Hankel transform of the pupil function A(z) of the slice
+     * iz at the radii of the radial engine.
+     * @param iz index of the slice
+     * @return the complex amplitude at the radii, in a work buffer of the thread
+     */
+    private double[] hankelAmplitude(int iz)
+    {
+        final int nK = rhoK.length;
+        double defoc_scale;
+        if (iz > Nz/2)
         {
-            if(ny > Ny/2)
+            defoc_scale = DEUXPI*(iz - Nz)*dz;
+        }
+        else
+        {
+            defoc_scale = DEUXPI*iz*dz;
+        }
+        double[] f = buffers.getDouble(FREQUENCY_BUFFER, 2*nK);
+        double[] g = buffers.getDouble(RADII_BUFFER, 2*hankel.getRadii().length);
+        for (int k = 0; k < nK; k++)
+        {
+            double phasePupil = phiK[k] + defoc_scale*psiK[k];
+            f[2*k] = rhoK[k]*Math.cos(phasePupil);
+            f[2*k + 1] = rhoK[k]*Math.sin(phasePupil);
+        }
+        hankel.transform(f, g);
+        return g;
+    }
+
+    /**
+     * Compute the slice iz of cpxPsf (the conjugate of the complex amplitude)
+     * without storing it, for the low memory mode.
+     * @param iz index of the slice
+     * @param A the 2.Nx.Ny values of the slice
+     */
+    private void amplitudeSlice(int iz, float[] A)
+    {
+        final int Npix = Nx*Ny;
+        if (hankelPsf) {
+            final double scale = (Nx*dxy)*(Ny*dxy);
+            final double[] g = hankelAmplitude(iz);
+            for (int in = 0; in < Npix; in++)
             {
-                ry[ny] = (ny - Ny)*scale_y - deltaY;
-            }else
+                int m = hankelIndex[in];
+                double w = hankelWeight[in];
+                A[2*in] = (float) (scale*((1 - w)*g[2*m] + w*g[2*m + 2]));
+                A[2*in + 1] = (float) (-scale*((1 - w)*g[2*m + 1] + w*g[2*m + 3]));
+            }
+            return;
+        }
+        if (phasorCacheFilled && (PState > 0)) {
+            float[] P = phasorCacheF[iz];
+            Arrays.fill(A, 0.f);
+            for (int p = 0; p < nPupil; p++)
             {
-                ry[ny]  = ny*scale_y - deltaY;
+                int in = pupilIndex[p];
+                A[2*in] = rhoSF[p]*P[2*p];
+                A[2*in + 1] = rhoSF[p]*P[2*p + 1];
             }
+        } else {
+            fillPupil(A, pupilIndex, rhoSF, phiSF, psiSF, DEUXPI*(iz > Nz/2 ? iz - Nz : iz)*dz);
         }
-        if(isSingle()){
-            if(para){
-                int threads = Runtime.getRuntime().availableProcessors();
-                ExecutorService service = Executors.newFixedThreadPool(threads);
+        FFTPlans.getFloatFFT2D(Nx, Ny).complexForward(A);
+        for (int in = 0; in < Npix; in++)
+        {
+            A[2*in + 1] = -A[2*in + 1];
+        }
+    }
 
-                List<Future<ApplyJDefOut>> futures = new ArrayList<>();
-                for ( int iz = 0; iz < Nz; iz++)
-                {
-                    final Float2D qz = ((Float3D) q.asShapedArray()).slice(iz);
-                    final int iz1 = iz;
-                    Callable<ApplyJDefOut> callable = new Callable<ApplyJDefOut>() {
-                        @Override
-                        public ApplyJDefOut call() throws Exception {
-                            double defoc_scale=0;
-                            float Aq[] = new float[2*Npix];
-                            double defoc;
-                            ApplyJDefOut dout = new ApplyJDefOut(0,0,0);
-                            if (iz1 > Nz/2)
-                            {
-                                defoc = (iz1 - Nz)*dz;
-                                defoc_scale = DEUXPI*(iz1 - Nz)*dz;
-                            }
-                            else
-                            {
-                                defoc = iz1*dz;
-                                defoc_scale = DEUXPI*iz1*dz;
-                            }
+    /**
+     * Compute the slice iz of cpxPsf (the conjugate of the complex amplitude)
+     * without storing it, for the low memory mode.
+     * @param iz index of the slice
+     * @param A the 2.Nx.Ny values of the slice
+     */
+    private void amplitudeSlice(int iz, double[] A)
+    {
+        final int Npix = Nx*Ny;
+        if (hankelPsf) {
+            final double scale = (Nx*dxy)*(Ny*dxy);
+            final double[] g = hankelAmplitude(iz);
+            for (int in = 0; in < Npix; in++)
+            {
+                int m = hankelIndex[in];
+                double w = hankelWeight[in];
+                A[2*in] = scale*((1 - w)*g[2*m] + w*g[2*m + 2]);
+                A[2*in + 1] = -scale*((1 - w)*g[2*m + 1] + w*g[2*m + 3]);
+            }
+            return;
+        }
+        if (phasorCacheFilled && (PState > 0)) {
+            double[] P = phasorCache[iz];
+            Arrays.fill(A, 0.);
+            for (int p = 0; p < nPupil; p++)
+            {
+                int in = pupilIndex[p];
+                A[2*in] = rhoS[p]*P[2*p];
+                A[2*in + 1] = rhoS[p]*P[2*p + 1];
+            }
+        } else {
+            fillPupil(A, pupilIndex, rhoS, phiS, psiS, DEUXPI*(iz > Nz/2 ? iz - Nz : iz)*dz);
+        }
+        FFTPlans.getDoubleFFT2D(Nx, Ny).complexForward(A);
+        for (int in = 0; in < Npix; in++)
+        {
+            A[2*in + 1] = -A[2*in + 1];
+        }
+    }
 
-                            for (int iy = 0; iy < Ny; iy++){
-                                for (int ix = 0; ix < Nx; ix++){
-                                    int in = (ix+Nx*iy);
-                                    float qin =  qz.get(ix, iy);
-                                    Aq[2*in]=  ((Float4D) cpxPsf).get(0, ix, iy, iz1 )*qin;
-                                    Aq[2*in+1]=  ((Float4D) cpxPsf).get(1, ix, iy, iz1 )*qin;
-                                }
-                            }
-                            /* Fourier transform of the pupil function A(z) */
-                            FloatFFT_2D FFT2D = new FloatFFT_2D(Nx, Ny);
-                            FFT2D.complexForward(Aq);
-
-                            for (int j = 0; j < Ny; j++)
-                            {
-                                for (int i = 0; i < Nx; i++)
-                                {
-                                    int in = i + j*Nx;
-                                    if(maskPupil[in] )
-                                    {
-                                        double idef= 1./psi[in];
-                                        double ph = phi[in] + defoc_scale*psi[in];
-                                        double tmpvar = -DEUXPI*rho[in]*( Aq[2*in]*Math.sin(ph) + Aq[2*in + 1]*Math.cos(ph) )*PSFNorm;
-                                        {
-                                            dout.d1 -= tmpvar*( rx[i]*(defoc*idef ));
-                                            dout.d2 -= tmpvar*( ry[j]*(defoc*idef) );
-                                            dout.d0 += tmpvar*( idef*lambda_ni*defoc );
-                                        }
-                                    }
-                                }
-                            }
-                            return  dout;
-                        }
-                    };
-                    futures.add(service.submit(callable));
-                }
+    /**
+     * Check whether the phase of the pupil is null on its support. In that
+     * case A(-z) = conj(A(z)) and the PSF is symmetric along z.
+     * @return true if the phase is null
+     */
+    private boolean isPhaseNull() {
+        for (int p = 0; p < nPupil; p++) {
+            if ((isSingle() ? phiSF[p] : phiS[p]) != 0.) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                service.shutdown();
-
-                for (Future<ApplyJDefOut> future : futures) {
-                    ApplyJDefOut output;
-                    try {
-                        output = future.get();
-                        d0 += output.d0;
-                        d1 -= output.d1;
-                        d2 -= output.d2;
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
+    /**
+     * Fill the slice Nz - iz of the PSF and of its complex amplitude from the
+     * slice iz when the phase is null.
+     * <p>
+     * As A(-z) = conj(A(z)), its Fourier transform is F(-z)(k) = conj(F(z)(-k))
+     * so that psf(-z)(k) = psf(z)(-k) and cpxPsf(-z)(k) = conj(cpxPsf(z)(-k)).
+     * Nothing is done for the slices that have no mirror (0 and Nz/2 when Nz
+     * is even).
+     * @param iz index of the computed slice
+     */
+    private void mirrorPsfSlice(int iz)
+    {
+        if (iz < 1 || 2*iz >= Nz) {
+            return;
+        }
+        final int Npix = Nx*Ny;
+        final int offIn = Npix*iz;
+        final int offOut = Npix*(Nz - iz);
+        if (fillingPhasorCache) {
+            /* without phase, the phasor at -z is the conjugate of the phasor at z */
+            if (isSingle()) {
+                float[] P = phasorCacheF[iz];
+                float[] M = phasorCacheF[Nz - iz];
+                for (int p = 0; p < nPupil; p++) {
+                    M[2*p] = P[2*p];
+                    M[2*p + 1] = -P[2*p + 1];
+                }
+            } else {
+                double[] P = phasorCache[iz];
+                double[] M = phasorCache[Nz - iz];
+                for (int p = 0; p < nPupil; p++) {
+                    M[2*p] = P[2*p];
+                    M[2*p + 1] = -P[2*p + 1];
+                }
+            }
+        }
+        if(isSingle()){
+            float[] cpx = (cpxPsf == null ? null : ((Float4D) cpxPsf).getData());
+            float[] h = ((Float3D) psf).getData();
+            for (int iy = 0; iy < Ny; iy++) {
+                int my = (iy == 0 ? 0 : Ny - iy);
+                for (int ix = 0; ix < Nx; ix++) {
+                    int mx = (ix == 0 ? 0 : Nx - ix);
+                    int in = offIn + mx + Nx*my;
+                    int out = offOut + ix + Nx*iy;
+                    h[out] = h[in];
+                    if (cpx != null) {
+                        cpx[2*out] = cpx[2*in];
+                        cpx[2*out + 1] = -cpx[2*in + 1];
                     }
                 }
-            }else{
+            }
+        }else{
+            double[] cpx = (cpxPsf == null ? null : ((Double4D) cpxPsf).getData());
+            double[] h = ((Double3D) psf).getData();
+            for (int iy = 0; iy < Ny; iy++) {
+                int my = (iy == 0 ? 0 : Ny - iy);
+                for (int ix = 0; ix < Nx; ix++) {
+                    int mx = (ix == 0 ? 0 : Nx - ix);
+                    int in = offIn + mx + Nx*my;
+                    int out = offOut + ix + Nx*iy;
+                    h[out] = h[in];
+                    if (cpx != null) {
+                        cpx[2*out] = cpx[2*in];
+                        cpx[2*out + 1] = -cpx[2*in + 1];
+                    }
+                }
+            }
+        }
+    }
 
-                FloatFFT_2D FFT2D = new FloatFFT_2D(Nx, Ny);
-                double defoc, idef, tmpvar;
-                float Aq[] = new float[2*Npix];
+    @Override
+    public DoubleShapedVector apply_Jacobian(ShapedVector grad, ShapedVectorSpace xspace){
+        return apply_Jacobian(grad, new ShapedVectorSpace[] {xspace})[0];
+    }
 
-                for (int iz = 0; iz < Nz; iz++)
-                {
-                    double defoc_scale =0.;
-                    if (iz > Nz/2)
-                    {
-                        defoc = (iz - Nz)*dz;
-                        defoc_scale  = DEUXPI*defoc;
-                    }
-                    else
-                    {
-                        defoc = iz*dz;
-                        defoc_scale = DEUXPI*defoc;
-                    }
+    @Override
+    public DoubleShapedVector[] apply_Jacobian(ShapedVector grad, ShapedVectorSpace[] xspaces){
+        boolean[] flags = new boolean[3];
+        for (ShapedVectorSpace xspace : xspaces) {
+            flags[getParameterFlag(xspace)] = true;
+        }
+        DoubleShapedVector[] jac = applyJacobians(grad, flags);
+        DoubleShapedVector[] out = new DoubleShapedVector[xspaces.length];
+        for (int i = 0; i < xspaces.length; i++) {
+            out[i] = jac[getParameterFlag(xspaces[i])];
+        }
+        return out;
+    }
 
+    /**
+     * @param xspace a parameter space of the model
+     * @return the flag (DEFOCUS, PHASE or MODULUS) of this parameter space
+     */
+    public int getParameterFlag(ShapedVectorSpace xspace){
+        if(xspace ==  parameterSpace[DEFOCUS]){
+            return DEFOCUS;
+        }else if(xspace ==  parameterSpace[PHASE]){
+            return PHASE;
+        }else if(xspace ==  parameterSpace[MODULUS]){
+            return MODULUS;
+        }else{
+            throw new IllegalArgumentException("DoubleShapedVector grad does not belong to any space");
+        }
+    }
 
-                    for (int iy = 0; iy < Ny; iy++){
-                        for (int ix = 0; ix < Nx; ix++){
-                            int in = (ix+Nx*iy);
-                            float qin =  ((Float3D) q.asShapedArray()).get(ix, iy, iz);
-                            Aq[2*in]=  ((Float4D) cpxPsf).get(0, ix, iy, iz )*qin;
-                            Aq[2*in+1]=  ((Float4D) cpxPsf).get(1, ix, iy, iz )*qin;
-                        }
+    @Override
+    public  void setParam(DoubleShapedVector param) {
+        if(param.getOwner() ==  parameterSpace[DEFOCUS]){
+            setDefocus(param);
+        }else if(param.getOwner() ==  parameterSpace[PHASE]){
+            setPhase(param);
+        }else if(param.getOwner() ==  parameterSpace[MODULUS]){
+            setModulus(param);
+        }else{
+            throw new IllegalArgumentException("DoubleShapedVector param does not belong to any space");
+        }
+    }
 
-                    }
+    /**
+     * Apply the Jacobian matrix to go from  the PSF space to modulus coefficients space.
+     * @param q : the gradient of some criterion in the PSF space
+     * @return the gradient of this criterion in the modulus coefficients space.
+     */
+    public  DoubleShapedVector apply_J_modulus(final ShapedVector q)
+    {
+        return applyJacobians(q, new boolean[] {false, false, true})[MODULUS];
+    }
 
 
-                    FFT2D.complexForward(Aq);
+    /**
+     * Apply the Jacobian matrix to go from  the PSF space to phase coefficients space.
+     * @param q : the gradient of some criterion in the PSF space
+     * @return the gradient of this criterion in the phase coefficients space.
+     */
+    public DoubleShapedVector apply_J_phase(ShapedVector q)
+    {
+        return applyJacobians(q, new boolean[] {false, true, false})[PHASE];
+    }
+
+
+    /**
+     * Apply the Jacobian matrix to go from  the PSF space to defocus coefficients space.
+     * @param q : the gradient of some criterion in the PSF space
+     * @return the gradient of this criterion in the defocus coefficients space.
+     */
+    public DoubleShapedVector apply_J_defocus(ShapedVector q)
+    {
+        return applyJacobians(q, new boolean[] {true, false, false})[DEFOCUS];
+    }
 
 
+    /**
+     * Apply the Jacobian matrices of the selected parameter groups in a single
+     * pass over the z slices.
+     * <p>
+     * For each slice, the Fourier transform of cpxPsf.q is computed once and
+     * projected on the pupil support. The quantities needed by each group are
+     * summed over z and only then projected on the parameters.
+     * @param q : the gradient of some criterion in the PSF space
+     * @param flags : flags[DEFOCUS], flags[PHASE] and flags[MODULUS] select the groups to compute
+     * @return the gradients indexed by DEFOCUS, PHASE and MODULUS (null for the groups not selected)
+     */
+    protected DoubleShapedVector[] applyJacobians(ShapedVector q, final boolean[] flags)
+    {
+        lockExecutor();
+        try {
+            /* the Jacobian is evaluated at the current parameters, not at the last computed PSF */
+            if (PState<1){
+                computePsf();
+            }
+            final Object qData;
+            if(isSingle()){
+                qData = ((Float3D) q.asShapedArray()).flatten();
+            }else{
+                qData = ((Double3D) q.asShapedArray()).flatten();
+            }
+            final boolean hankelPath = hankelPsf;
+            final int nAcc = (hankelPath ? rhoK.length : nPupil);
+            JacobianAccumulator acc = reduceSlices(Nz, new ParallelRange.Reduction<JacobianAccumulator>() {
+                @Override
+                public JacobianAccumulator create() {
+                    return new JacobianAccumulator(flags, nAcc);
+                }
 
-                    for (int j = 0; j < Ny; j++)
+                @Override
+                public void run(int start, int end, JacobianAccumulator sacc) {
+                    for ( int iz = start; iz < end; iz++)
                     {
-                        for (int i = 0; i < Nx; i++)
-                        {
-                            int in = i + j*Nx;
-                            if(maskPupil[in] )
-                            {
-                                idef= 1./psi[in];
-                                double ph = phi[in] + defoc_scale*psi[in];
-                                tmpvar = -DEUXPI*rho[in]*( Aq[2*in]*Math.sin(ph) + Aq[2*in + 1]*Math.cos(ph) )*PSFNorm;
-                                {
-                                    d1 -= tmpvar*( rx[i]*(defoc*idef ));
-                                    d2 -= tmpvar*( ry[j]*(defoc*idef) );
-                                    d0 += tmpvar*( idef*lambda_ni*defoc );
-                                }
-                            }
+                        if (hankelPath) {
+                            accumulateHankelSlice(iz, qData, sacc);
+                        } else {
+                            accumulateJacobianSlice(iz, qData, sacc);
                         }
                     }
                 }
 
+                @Override
+                public void merge(JacobianAccumulator sacc, JacobianAccumulator next) {
+                    sacc.add(next);
+                }
+            });
+            return (hankelPath ? projectHankelJacobians(acc) : projectJacobians(acc));
+        } finally {
+            unlockExecutor();
+        }
+    }
+
+    /**
+     * Add the contribution of the slice iz to the Jacobian accumulators.
+     * @param iz index of the slice
+     * @param qData flat array of the gradient in the PSF space (float[] or double[])
+     * @param acc accumulators
+     */
+    private void accumulateJacobianSlice(int iz, Object qData, JacobianAccumulator acc)
+    {
+        final int Npix = Nx*Ny;
+        /* in low memory mode, the slice of cpxPsf is computed again in the work buffer */
+        final boolean regenerate = (cpxPsf == null);
+        final int offA = (regenerate ? 0 : 2*Npix*iz);
+        final int offQ = Npix*iz;
+        double defoc;
+        if (iz > Nz/2)
+        {
+            defoc = (iz - Nz)*dz;
+        }
+        else
+        {
+            defoc = iz*dz;
+        }
+        double defoc_scale = DEUXPI*defoc;
+        /* the phasors of the current PSF, if they have been kept */
+        final boolean cached = phasorCacheFilled && (PState > 0);
+
+        if(isSingle()){
+            float[] Aq = floatBuffer();
+            float[] cpx;
+            if (regenerate) {
+                amplitudeSlice(iz, Aq);
+                cpx = Aq;
+            } else {
+                cpx = ((Float4D) cpxPsf).getData();
+            }
+            float[] qz = (float[]) qData;
+            for (int in = 0; in < Npix; in++)
+            {
+                float qin = qz[offQ + in];
+                Aq[2*in] = cpx[offA + 2*in]*qin;
+                Aq[2*in + 1] = cpx[offA + 2*in + 1]*qin;
+            }
+            /* Fourier transform of cpxPsf.q */
+            FFTPlans.getFloatFFT2D(Nx, Ny).complexForward(Aq);
+            if (cached) {
+                float[] P = phasorCacheF[iz];
+                for (int p = 0; p < nPupil; p++)
+                {
+                    int in = pupilIndex[p];
+                    acc.accumulate(p, Aq[2*in], Aq[2*in + 1], P[2*p], P[2*p + 1], rhoSF[p], defoc);
+                }
+                return;
+            }
+            for (int p = 0; p < nPupil; p++)
+            {
+                int in = pupilIndex[p];
+                double ph = phiSF[p] + defoc_scale*psiSF[p];
+                acc.accumulate(p, Aq[2*in], Aq[2*in + 1], Math.cos(ph), Math.sin(ph), rhoSF[p], defoc);
             }
         }else{
-            if(para){
-                int threads = Runtime.getRuntime().availableProcessors();
-                ExecutorService service = Executors.newFixedThreadPool(threads);
-
-                List<Future<double[]>> futures = new ArrayList<>();
-                for ( int iz = 0; iz < Nz; iz++)
+            double[] Aq = doubleBuffer();
+            double[] cpx;
+            if (regenerate) {
+                amplitudeSlice(iz, Aq);
+                cpx = Aq;
+            } else {
+                cpx = ((Double4D) cpxPsf).getData();
+            }
+            double[] qz = (double[]) qData;
+            for (int in = 0; in < Npix; in++)
+            {
+                double qin = qz[offQ + in];
+                Aq[2*in] = cpx[offA + 2*in]*qin;
+                Aq[2*in + 1] = cpx[offA + 2*in + 1]*qin;
+            }
+            /* Fourier transform of cpxPsf.q */
+            FFTPlans.getDoubleFFT2D(Nx, Ny).complexForward(Aq);
+            if (cached) {
+                double[] P = phasorCache[iz];
+                for (int p = 0; p < nPupil; p++)
                 {
-                    final Double2D qz = ((Double3D) q.asShapedArray()).slice(iz);
-
-                    final int iz1 = iz;
-                    Callable<double[]> callable = new Callable<double[]>() {
-                        @Override
-                        public double[] call() throws Exception {
-
-
-                            double defoc_scale=0;
-                            double Aq[] = new double[2*Npix];
-                            double defoc;
-                            double[] dout = new double[3];
-                            if (iz1 > Nz/2)
-                            {
-                                defoc = (iz1 - Nz)*dz;
-                                defoc_scale = DEUXPI*(iz1 - Nz)*dz;
-                            }
-                            else
-                            {
-                                defoc = iz1*dz;
-                                defoc_scale = DEUXPI*iz1*dz;
-                            }
+                    int in = pupilIndex[p];
+                    acc.accumulate(p, Aq[2*in], Aq[2*in + 1], P[2*p], P[2*p + 1], rhoS[p], defoc);
+                }
+                return;
+            }
+            for (int p = 0; p < nPupil; p++)
+            {
+                int in = pupilIndex[p];
+                double ph = phiS[p] + defoc_scale*psiS[p];
+                acc.accumulate(p, Aq[2*in], Aq[2*in + 1], Math.cos(ph), Math.sin(ph), rhoS[p], defoc);
+            }
+        }
+    }
 
-                            for (int iy = 0; iy < Ny; iy++){
-                                for (int ix = 0; ix < Nx; ix++){
-                                    int in = (ix+Nx*iy);
-                                    double qin =  qz.get(ix, iy);
-                                    Aq[2*in]=  ((Double4D) cpxPsf).get(0, ix, iy, iz1 )*qin;
-                                    Aq[2*in+1]=  ((Double4D) cpxPsf).get(1, ix, iy, iz1 )*qin;
-                                }
+    /**
+     * Add the contribution of the slice iz to the Jacobian accumulators when
+     * the PSF is computed by the radial engine. The accumulators are indexed
+     * by the Hankel frequencies.
+     * <p>
+     * The amplitude being a real linear operator L (Hankel transform,
+     * resampling and scaling) of the pupil profile, cpxPsf.q is projected back
+     * on the frequencies with the transpose of L.
+     * @param iz index of the slice
+     * @param qData flat array of the gradient in the PSF space (float[] or double[])
+     * @param acc accumulators
+     */
+    private void accumulateHankelSlice(int iz, Object qData, JacobianAccumulator acc)
+    {
+        final int Npix = Nx*Ny;
+        /* in low memory mode, the slice of cpxPsf is computed again in the work buffer */
+        final boolean regenerate = (cpxPsf == null);
+        final int offA = (regenerate ? 0 : 2*Npix*iz);
+        final int offQ = Npix*iz;
+        final int nK = rhoK.length;
+        final double scale = (Nx*dxy)*(Ny*dxy);
+        double defoc;
+        if (iz > Nz/2)
+        {
+            defoc = (iz - Nz)*dz;
+        }
+        else
+        {
+            defoc = iz*dz;
+        }
+        double defoc_scale = DEUXPI*defoc;
 
-                            }
-                            /* Fourier transform of the pupil function A(z) */
-                            DoubleFFT_2D FFT2D = new DoubleFFT_2D(Nx, Ny);
-                            FFT2D.complexForward(Aq);
-
-                            for (int j = 0; j < Ny; j++)
-                            {
-                                for (int i = 0; i < Nx; i++)
-                                {
-                                    int in = i + j*Nx;
-                                    if(maskPupil[in] )
-                                    {
-                                        double idef= 1./psi[in];
-                                        double ph = phi[in] + defoc_scale*psi[in];
-                                        double tmpvar = -DEUXPI*rho[in]*( Aq[2*in]*Math.sin(ph) + Aq[2*in + 1]*Math.cos(ph) )*PSFNorm;
-                                        {
-                                            /* dout.d1 -= tmpvar*( rx[i]*(defoc*idef ));
-                                            dout.d2 -= tmpvar*( ry[j]*(defoc*idef) );
-                                            dout.d0 += tmpvar*( idef*lambda_ni*defoc );*/
-                                            dout[1] -= tmpvar*( rx[i]*(defoc*idef ));
-                                            dout[2] -= tmpvar*( ry[j]*(defoc*idef) );
-                                            dout[0] += tmpvar*( idef*lambda_ni*defoc );
-                                        }
-                                    }
-                                }
-                            }
+        final int nR = hankel.getRadii().length;
+        double[] v;
+        if(isSingle()){
+            float[] cpx;
+            if (regenerate) {
+                cpx = floatBuffer();
+                amplitudeSlice(iz, cpx);
+            } else {
+                cpx = ((Float4D) cpxPsf).getData();
+            }
+            /* obtained after amplitudeSlice that uses the same buffer */
+            v = buffers.getDouble(RADII_BUFFER, 2*nR);
+            Arrays.fill(v, 0.);
+            float[] qz = (float[]) qData;
+            for (int in = 0; in < Npix; in++)
+            {
+                int m = hankelIndex[in];
+                double w = hankelWeight[in];
+                double re = cpx[offA + 2*in]*qz[offQ + in];
+                double im = cpx[offA + 2*in + 1]*qz[offQ + in];
+                v[2*m] += (1 - w)*re;
+                v[2*m + 1] += (1 - w)*im;
+                v[2*m + 2] += w*re;
+                v[2*m + 3] += w*im;
+            }
+        }else{
+            double[] cpx;
+            if (regenerate) {
+                cpx = doubleBuffer();
+                amplitudeSlice(iz, cpx);
+            } else {
+                cpx = ((Double4D) cpxPsf).getData();
+            }
+            /* obtained after amplitudeSlice that uses the same buffer */
+            v = buffers.getDouble(RADII_BUFFER, 2*nR);
+            Arrays.fill(v, 0.);
+            double[] qz = (double[]) qData;
+            for (int in = 0; in < Npix; in++)
+            {
+                int m = hankelIndex[in];
+                double w = hankelWeight[in];
+                double re = cpx[offA + 2*in]*qz[offQ + in];
+                double im = cpx[offA + 2*in + 1]*qz[offQ + in];
+                v[2*m] += (1 - w)*re;
+                v[2*m + 1] += (1 - w)*im;
+                v[2*m + 2] += w*re;
+                v[2*m + 3] += w*im;
+            }
+        }
+        double[] g = buffers.getDouble(FREQUENCY_BUFFER, 2*nK);
+        hankel.transformTranspose(v, g);
+        for (int k = 0; k < nK; k++)
+        {
+            double ph = phiK[k] + defoc_scale*psiK[k];
+            acc.accumulate(k, scale*g[2*k], scale*g[2*k + 1], Math.cos(ph), Math.sin(ph), rhoK[k], defoc);
+        }
+    }
 
-                            return  dout;
-                        }
-                    };
-                    futures.add(service.submit(callable));
-                }
+    /**
+     * Project the quantities accumulated on the Hankel frequencies on the
+     * parameters of each group. The Zernike modes are interpolated along the
+     * kx axis as ρ and φ. The pupil is centered with the radial engine, so
+     * the gradient along δx and δy is null.
+     * @param acc accumulators summed over all the slices
+     * @return the gradients indexed by DEFOCUS, PHASE and MODULUS
+     */
+    private DoubleShapedVector[] projectHankelJacobians(JacobianAccumulator acc)
+    {
+        final double PSFNorm = 1.0/(Nx*Ny*Nz);
+        final int nK = rhoK.length;
+        DoubleShapedVector[] jac = new DoubleShapedVector[3];
 
-                service.shutdown();
-
-                for (Future<double[]> future : futures) {
-                    double[] output;
-                    try {
-                        output = future.get();
-                        d0 += output[0];
-                        d1 -= output[1];
-                        d2 -= output[2];
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
+        if(acc.jPhase != null){
+            int offset = phaseOffset();
+            double[] grd = new double[parameterSpace[PHASE].getNumber()];
+            for (int k = 0; k < grd.length; k++)
+            {
+                double tmp = 0;
+                for (int n = 0; n < nK; n++)
+                {
+                    if (axisIndex[n] >= 0) {
+                        tmp += acc.jPhase[n]*zernikeOnAxis(k + offset, n);
                     }
                 }
-            }else{
+                grd[k] = -2*PSFNorm*tmp;
+            }
+            jac[PHASE] = parameterSpace[PHASE].wrap(grd);
+        }
 
-                DoubleFFT_2D FFT2D = new DoubleFFT_2D(Nx, Ny);
-                for ( int iz = 0; iz < Nz; iz++)
+        if(acc.jModulus != null){
+            /* ρ = Σ_n β_n Z_n / ||β|| */
+            DoubleShapedVector beta = parameterCoefs[MODULUS];
+            double NBeta = 1./beta.norm2();
+            double[] grd = new double[parameterSpace[MODULUS].getNumber()];
+            double betaGrd = 0;
+            for (int k = 0; k < grd.length; k++)
+            {
+                double tmp = 0;
+                for (int n = 0; n < nK; n++)
                 {
-
-                    final Double2D qz = ((Double3D) q.asShapedArray()).slice(iz);
-                    final int iz1 = iz;
-
-
-                    double defoc_scale=0;
-                    double Aq[] = new double[2*Npix];
-                    double defoc;
-
-                    if (iz1 > Nz/2)
-                    {
-                        defoc = (iz1 - Nz)*dz;
-                        defoc_scale = DEUXPI*(iz1 - Nz)*dz;
-                    }
-                    else
-                    {
-                        defoc = iz1*dz;
-                        defoc_scale = DEUXPI*iz1*dz;
+                    if (axisIndex[n] >= 0) {
+                        tmp += acc.jModulus[n]*zernikeOnAxis(k, n);
                     }
+                }
+                grd[k] = 2*PSFNorm*tmp;
+                betaGrd += beta.get(k)*grd[k];
+            }
+            for (int k = 0; k < grd.length; k++)
+            {
+                grd[k] = (grd[k] - beta.get(k)*betaGrd*NBeta*NBeta)*NBeta;
+            }
+            jac[MODULUS] = parameterSpace[MODULUS].wrap(grd);
+        }
 
-                    for (int iy = 0; iy < Ny; iy++){
-                        for (int ix = 0; ix < Nx; ix++){
-                            int in = (ix+Nx*iy);
-                            double qin =  qz.get(ix, iy);
-                            Aq[2*in]=  ((Double4D) cpxPsf).get(0, ix, iy, iz1 )*qin;
-                            Aq[2*in+1]=  ((Double4D) cpxPsf).get(1, ix, iy, iz1 )*qin;
-                        }
+        if(acc.jDefocus != null){
+            /* ψ = sqrt((n_i/λ)² - κ²) */
+            double d0 = 0;
+            for (int n = 0; n < nK; n++)
+            {
+                if (psiK[n] > 0) {
+                    d0 += -2*DEUXPI*PSFNorm*acc.jDefocus[n]/psiK[n]*lambda_ni;
+                }
+            }
+            double[] grd = new double[parameterSpace[DEFOCUS].getNumber()];
+            if (grd.length != 2) {
+                grd[0] = d0;
+            }
+            jac[DEFOCUS] = parameterSpace[DEFOCUS].wrap(grd);
+        }
+        return jac;
+    }
 
-                    }
-                    /* Fourier transform of the pupil function A(z) */
-                    FFT2D.complexForward(Aq);
+    /**
+     * Interpolate a Zernike mode at a Hankel frequency along the kx axis.
+     * The pixels 0 to last of the kx axis being the first ones of the pupil
+     * support, their index in the packed basis is their abscissa.
+     * @param k index of the mode
+     * @param n index of the Hankel frequency
+     * @return the interpolated mode
+     */
+    private double zernikeOnAxis(int k, int n)
+    {
+        int i = axisIndex[n];
+        double w = axisWeight[n];
+        int off = k*nPupil + i;
+        if (isSingle()) {
+            return (w > 0 ? (1 - w)*ZsF[off] + w*ZsF[off + 1] : ZsF[off]);
+        }
+        return (w > 0 ? (1 - w)*Zs[off] + w*Zs[off + 1] : Zs[off]);
+    }
 
+    /**
+     * Project the accumulated quantities on the parameters of each group.
+     * <p>
+     * With h = |a|²/N and N = Nx.Ny.Nz, the derivative of &lt;h, q&gt; with
+     * respect to a real pupil quantity is 2/N times the sum over z of the
+     * corresponding term of the accumulators:
+     * <ul>
+     * <li> phase: ∂/∂α_k = -2/N Σ_p Z_k jPhase, </li>
+     * <li> modulus: ρ = Σ_n β_n Z_n / ||β|| so ∂/∂β_k is the gradient on the
+     * normalized coefficients g_k = 2/N Σ_p Z_k jModulus projected
+     * orthogonally to β: (g_k - β_k (β.g)/||β||²)/||β||, </li>
+     * <li> defocus: ∂ψ/∂(n_i/λ) = (n_i/λ)/ψ and ∂ψ/∂δx = (kx - δx)/ψ, so each
+     * parameter gets -2/N 2π Σ_p jDefocus ∂ψ/∂parameter. With 2 parameters
+     * the vector is {δx, δy}. </li>
+     * </ul>
+     * These expressions are checked against finite differences by
+     * WideFieldModelGradientTest.
+     * @param acc accumulators summed over all the slices
+     * @return the gradients indexed by DEFOCUS, PHASE and MODULUS
+     */
+    private DoubleShapedVector[] projectJacobians(JacobianAccumulator acc)
+    {
+        final double PSFNorm = 1.0/(Nx*Ny*Nz);
+        DoubleShapedVector[] jac = new DoubleShapedVector[3];
 
-                    for (int j = 0; j < Ny; j++)
-                    {
-                        for (int i = 0; i < Nx; i++)
-                        {
-                            int in = i + j*Nx;
-                            if(maskPupil[in] )
-                            {
-                                double idef= 1./psi[in];
-                                double ph = phi[in] + defoc_scale*psi[in];
-                                double tmpvar = -DEUXPI*rho[in]*( Aq[2*in]*Math.sin(ph) + Aq[2*in + 1]*Math.cos(ph) )*PSFNorm;
-                                {
-                                    /* dout.d1 -= tmpvar*( rx[i]*(defoc*idef ));
-                                            dout.d2 -= tmpvar*( ry[j]*(defoc*idef) );
-                                            dout.d0 += tmpvar*( idef*lambda_ni*defoc );*/
-                                    d1 -= tmpvar*( rx[i]*(defoc*idef ));
-                                    d2 -= tmpvar*( ry[j]*(defoc*idef) );
-                                    d0 += tmpvar*( idef*lambda_ni*defoc );
-                                }
-                            }
-                        }
-                    }
+        if(acc.jPhase != null){
+            int offset = phaseOffset();
+            double[] grd = new double[parameterSpace[PHASE].getNumber()];
+            if (isSingle()){
+                MatrixVector.multiplyTranspose(ZsF, nPupil, offset*nPupil, acc.jPhase, grd, kernelExecutor());
+            }else{
+                MatrixVector.multiplyTranspose(Zs, nPupil, offset*nPupil, acc.jPhase, grd, kernelExecutor());
+            }
+            for (int k = 0; k < grd.length; k++)
+            {
+                grd[k] *= -2*PSFNorm;
+            }
+            jac[PHASE] = parameterSpace[PHASE].wrap(grd);
+        }
 
-                }
+        if(acc.jModulus != null){
+            /* ρ = Σ_n β_n Z_n / ||β|| */
+            DoubleShapedVector beta = parameterCoefs[MODULUS];
+            double NBeta = 1./beta.norm2();
+            double[] grd = new double[parameterSpace[MODULUS].getNumber()];
+            double betaGrd = 0;
+            if (isSingle()){
+                MatrixVector.multiplyTranspose(ZsF, nPupil, 0, acc.jModulus, grd, kernelExecutor());
+            }else{
+                MatrixVector.multiplyTranspose(Zs, nPupil, 0, acc.jModulus, grd, kernelExecutor());
+            }
+            for (int k = 0; k < grd.length; k++)
+            {
+                grd[k] *= 2*PSFNorm;
+                betaGrd += beta.get(k)*grd[k];
             }
+            for (int k = 0; k < grd.length; k++)
+            {
+                grd[k] = (grd[k] - beta.get(k)*betaGrd*NBeta*NBeta)*NBeta;
+            }
+            jac[MODULUS] = parameterSpace[MODULUS].wrap(grd);
         }
-        switch(parameterSpace[DEFOCUS].getNumber())
-        {
-            case 3:
-                grd[2] = d2;
-                grd[1] = d1;
-            case 1:
-                grd[0] = d0;
-                break;
-            case 2:
-                grd[2] = d2;
-                grd[1] = d1;
-                break;
+
+        if(acc.jDefocus != null){
+            /* ψ = sqrt((n_i/λ)² - (kx - δx)² - (ky - δy)²) */
+            double scale_x = 1/(Nx*dxy);
+            double scale_y = 1/(Ny*dxy);
+            double d0 = 0, d1 = 0, d2 = 0;
+            for (int p = 0; p < nPupil; p++)
+            {
+                int in = pupilIndex[p];
+                int i = in % Nx;
+                int j = in / Nx;
+                double rx = (i > Nx/2 ? (i - Nx)*scale_x : i*scale_x) - deltaX;
+                double ry = (j > Ny/2 ? (j - Ny)*scale_y : j*scale_y) - deltaY;
+                double tmpvar = -2*DEUXPI*PSFNorm*acc.jDefocus[p]/(isSingle() ? psiSF[p] : psiS[p]);
+                d0 += tmpvar*lambda_ni;
+                d1 += tmpvar*rx;
+                d2 += tmpvar*ry;
+            }
+            double[] grd = new double[parameterSpace[DEFOCUS].getNumber()];
+            switch(grd.length)
+            {
+                case 3:
+                    grd[2] = d2;
+                    grd[1] = d1;
+                    // fall through
+                case 1:
+                    grd[0] = d0;
+                    break;
+                case 2:
+                    grd[1] = d2;
+                    grd[0] = d1;
+                    break;
+            }
+            jac[DEFOCUS] = parameterSpace[DEFOCUS].wrap(grd);
         }
+        return jac;
+    }
+
 
+    /**
+     * Per pixel sums over z of the quantities needed by the Jacobians.
+     */
+    private class JacobianAccumulator {
+        final double[] jPhase; // Σ_z ρ Im(e^{iΦ} F(a.q))
+        final double[] jModulus; // Σ_z Re(e^{iΦ} F(a.q))
+        final double[] jDefocus; // Σ_z z ρ Im(e^{iΦ} F(a.q))
+
+        JacobianAccumulator(boolean[] flags, int n){
+            jPhase = (flags[PHASE] ? new double[n] : null);
+            jModulus = (flags[MODULUS] ? new double[n] : null);
+            jDefocus = (flags[DEFOCUS] ? new double[n] : null);
+        }
 
-        return  parameterSpace[DEFOCUS].create(Double1D.wrap(grd, parameterSpace[DEFOCUS].getShape()));
+        void accumulate(int p, double re, double im, double cos, double sin, double rho, double defoc){
+            double jin = rho*(re*sin + im*cos);
+            if (jPhase != null){
+                jPhase[p] += jin;
+            }
+            if (jDefocus != null){
+                jDefocus[p] += jin*defoc;
+            }
+            if (jModulus != null){
+                jModulus[p] += re*cos - im*sin;
+            }
+        }
 
+        void add(JacobianAccumulator other){
+            int n = Math.max(Math.max((jPhase == null ? 0 : jPhase.length),
+                    (jDefocus == null ? 0 : jDefocus.length)), (jModulus == null ? 0 : jModulus.length));
+            for (int p = 0; p < n; p++)
+            {
+                if (jPhase != null){
+                    jPhase[p] += other.jPhase[p];
+                }
+                if (jDefocus != null){
+                    jDefocus[p] += other.jDefocus[p];
+                }
+                if (jModulus != null){
+                    jModulus[p] += other.jModulus[p];
+                }
+            }
+        }
     }
 
 
@@ -1401,47 +2049,17 @@ public class WideFieldModel extends MicroscopeModel{
                 }
             }
         }
-        pupil_area = Math.sqrt(pupil_area);
-        freeMem();
-    }
-
-
-    private class ApplyJDefOut {
-        double d0;
-        double d1;
-        double d2;
-        public ApplyJDefOut(double d0_,double d1_, double d2_){
-            d0 = d0_;
-            d1 = d1_;
-            d2 = d2_;
-        }
-    }
-
-
-    private class ApplyJPhaOut {
-        double[] grd;
-        public ApplyJPhaOut( int nMode){
-            grd = new double[nMode];
-            Arrays.fill(grd, 0.);
-        }
-    }
-
-
-    private class GetPsfParaOut{
-        Object outA;
-        Object  outPsf;
-        int idxz;
-        public GetPsfParaOut(int nPix, int iz, boolean single){
-            idxz = iz;
-            if(single){
-                outA = new float[2*nPix];
-                outPsf = new float[2*nPix];
-            }else{
-                outA = new double[2*nPix];
-                outPsf = new double[2*nPix];
-
+        mapIndex = new int[(int) pupil_area];
+        pupil_area = Math.sqrt(pupil_area);
+        for (int in = 0, p = 0; in < Nx*Ny; in++)
+        {
+            if (mapPupil[in])
+            {
+                mapIndex[p++] = in;
             }
         }
+        updatePupilSupport();
+        invalidate();
     }
 
 
@@ -1455,8 +2073,32 @@ public class WideFieldModel extends MicroscopeModel{
         double scale_x = 1/(Nx*dxy);
         double scale_y = 1/(Ny*dxy);
         double q, rx, ry;
-        for (int ny = 0; ny < Ny; ny++)
+        boolean supportChanged = false;
+        dirty &= ~PSI;
+
+        /* If no pixel of the pupil can be evanescent, the support is the
+         * whole pupil and ψ is only updated on it */
+        double shift = radius + Math.sqrt(deltaX*deltaX + deltaY*deltaY);
+        if ((nPupil == mapIndex.length) && (shift*shift < lambda_ni2))
+        {
+            for (int p = 0; p < nPupil; p++)
+            {
+                int nxy = pupilIndex[p];
+                int nx = nxy % Nx;
+                int ny = nxy / Nx;
+                ry = scale_y*(ny > Ny/2 ? ny - Ny : ny) - deltaY;
+                rx = scale_x*(nx > Nx/2 ? nx - Nx : nx) - deltaX;
+                psi[nxy] = Math.sqrt(lambda_ni2 - rx*rx - ry*ry);
+            }
+            packPsi();
+            return;
+        }
+
+        for (int p = 0; p < mapIndex.length; p++)
         {
+            int nxy = mapIndex[p];
+            int nx = nxy % Nx;
+            int ny = nxy / Nx;
             if(ny > Ny/2)
             {
                 ry = Math.pow(scale_y*(ny - Ny) - deltaY, 2);
@@ -1465,36 +2107,38 @@ public class WideFieldModel extends MicroscopeModel{
             {
                 ry = Math.pow(scale_y*ny - deltaY, 2);
             }
-
-            for (int nx = 0; nx < Nx; nx++)
+            if(nx > Nx/2)
             {
-                int nxy = nx + ny*Nx;
-                if (mapPupil[nxy] )
-                {
-                    if(nx > Nx/2)
-                    {
-                        rx = Math.pow(scale_x*(nx - Nx) - deltaX, 2);
-                    }
-                    else
-                    {
-                        rx = Math.pow(scale_x*nx - deltaX, 2);
-                    }
+                rx = Math.pow(scale_x*(nx - Nx) - deltaX, 2);
+            }
+            else
+            {
+                rx = Math.pow(scale_x*nx - deltaX, 2);
+            }
 
-                    q = lambda_ni2 - rx - ry;
+            q = lambda_ni2 - rx - ry;
 
-                    if (q < 0.0)
-                    {
-                        psi[nxy] = 0;
-                        maskPupil[nxy] = false;
-                    }
-                    else
-                    {
-                        psi[nxy] = Math.sqrt(q);
-                        maskPupil[nxy] = true;
-                    }
-                }
+            if (q < 0.0)
+            {
+                psi[nxy] = 0;
+                supportChanged |= maskPupil[nxy];
+                maskPupil[nxy] = false;
+            }
+            else
+            {
+                psi[nxy] = Math.sqrt(q);
+                supportChanged |= !maskPupil[nxy];
+                maskPupil[nxy] = true;
             }
         }
+        if (supportChanged)
+        {
+            updatePupilSupport();
+        }
+        else
+        {
+            packPsi();
+        }
         //        freePSF();
     }
 
@@ -1513,6 +2157,9 @@ public class WideFieldModel extends MicroscopeModel{
         }else{
             throw new IllegalArgumentException("defocus  does not belong to the parameterSpace[DEFOCUS]");
         }
+        double oldLambda_ni = lambda_ni;
+        double oldDeltaX = deltaX;
+        double oldDeltaY = deltaY;
         switch (defoc.getNumber())
         {
             case 3:
@@ -1523,14 +2170,17 @@ public class WideFieldModel extends MicroscopeModel{
                 ni = lambda_ni * lambda;
                 break;
             case 2:
-                deltaX = defoc.get(1);
-                deltaY = defoc.get(2);
+                deltaX = defoc.get(0);
+                deltaY = defoc.get(1);
                 break;
             default:
                 throw new IllegalArgumentException("bad defocus  parameters");
         }
-        computeDefocus();
-        freeMem();
+        if ((lambda_ni != oldLambda_ni) || (deltaX != oldDeltaX) || (deltaY != oldDeltaY))
+        {
+            dirty |= PSI;
+            invalidate();
+        }
     }
 
     /**
@@ -1549,6 +2199,33 @@ public class WideFieldModel extends MicroscopeModel{
     }
 
 
+    /**
+     * The Zernike coefficients are of order one while n_i / \lambda is about
+     * 1e6 m^-1: it is thus scaled by its current value and the shifts
+     * \delta_x, \delta_y by the pupil radius NA / \lambda.
+     */
+    @Override
+    public double[] getParameterScales(int flag) {
+        double[] scales = super.getParameterScales(flag);
+        if (flag == DEFOCUS) {
+            switch (scales.length)
+            {
+                case 3:
+                    scales[1] = radius;
+                    scales[2] = radius;
+                    // fall through
+                case 1:
+                    scales[0] = lambda_ni;
+                    break;
+                case 2:
+                    scales[0] = radius;
+                    scales[1] = radius;
+                    break;
+            }
+        }
+        return scales;
+    }
+
     @Override
     public void setParam(double[] param) {
         // TODO: to be completed
@@ -1591,22 +2268,32 @@ public class WideFieldModel extends MicroscopeModel{
         }else{
             throw new IllegalArgumentException("DoubleShapedVector beta does not belong to the modulus space");
         }
+        if (!sameValues(modulus, rhoCoefs)){
+            rhoCoefs = getValues(modulus);
+            dirty |= RHO;
+            invalidate();
+        }
+    }
 
-        int Npix = Nx*Ny;
-        rho = new double[Npix];
+    /**
+     * Project the modulus coefficients on the Zernike basis over the pupil support
+     */
+    protected void updateRho() {
+        dirty &= ~RHO;
+        DoubleShapedVector modulus = parameterCoefs[MODULUS];
         double betaNorm = 1./( modulus.norm2());
-        for(int in = 0; in < Npix; in++)
+        double[] beta = new double[modulus.getNumber()];
+        for (int n = 0; n < beta.length; n++)
         {
-            if (maskPupil[in]  )
-            {
-
-                for (int n = 0; n < modulus.getNumber(); n++)
-                {
-                    rho[in] += Z[in + n*Npix]*modulus.get(n)*betaNorm;
-                }
-            }
+            beta[n] = modulus.get(n)*betaNorm;
+        }
+        if (isSingle()){
+            MatrixVector.multiply(ZsF, nPupil, 0, beta, rhoSF, kernelExecutor());
+            rho = unpack(rhoSF, rho);
+        }else{
+            MatrixVector.multiply(Zs, nPupil, 0, beta, rhoS, kernelExecutor());
+            rho = unpack(rhoS, rho);
         }
-        freeMem();
     }
 
     /**
@@ -1628,27 +2315,70 @@ public class WideFieldModel extends MicroscopeModel{
         }else{
             throw new IllegalArgumentException("phase parameter does not belong to the right space  ");
         }
-        int Npix = Nx*Ny;
-        phi = new double[Npix];
-        for(int in = 0; in < Npix; in++)
-        {
-            if (maskPupil[in] )
-            {
+        if (!sameValues(phase, phiCoefs)){
+            phiCoefs = getValues(phase);
+            dirty |= PHI;
+            invalidate();
+        }
+    }
 
-                for (int n = 0; n < phase.getNumber(); ++n)
-                {
-                    if(radial){
-                        phi[in] += Z[in + (n + 1)*Npix]*phase.get(n);
-                    }else{
-                        phi[in] += Z[in + (n + 3)*Npix]*phase.get(n);
-                    }
-                }
+    /**
+     * @param v
+     * @param values
+     * @return true if v holds the given values
+     */
+    private static boolean sameValues(DoubleShapedVector v, double[] values) {
+        if ((values == null) || (v.getNumber() != values.length)) {
+            return false;
+        }
+        for (int n = 0; n < values.length; n++) {
+            if (v.get(n) != values[n]) {
+                return false;
             }
         }
-        freeMem();
+        return true;
+    }
+
+    /**
+     * @param v
+     * @return a copy of the values of v
+     */
+    private static double[] getValues(DoubleShapedVector v) {
+        double[] values = new double[v.getNumber()];
+        for (int n = 0; n < values.length; n++) {
+            values[n] = v.get(n);
+        }
+        return values;
     }
 
 
+    /**
+     * Project the phase coefficients on the Zernike basis over the pupil support
+     */
+    protected void updatePhi() {
+        dirty &= ~PHI;
+        DoubleShapedVector phase = parameterCoefs[PHASE];
+        if (phase == null){
+            if (isSingle()){
+                Arrays.fill(phiSF, 0.f);
+                phi = unpack(phiSF, phi);
+            }else{
+                Arrays.fill(phiS, 0.);
+                phi = unpack(phiS, phi);
+            }
+            return;
+        }
+        int offset = phaseOffset();
+        double[] alpha = getValues(phase);
+        if (isSingle()){
+            MatrixVector.multiply(ZsF, nPupil, offset*nPupil, alpha, phiSF, kernelExecutor());
+            phi = unpack(phiSF, phi);
+        }else{
+            MatrixVector.multiply(Zs, nPupil, offset*nPupil, alpha, phiS, kernelExecutor());
+            phi = unpack(phiS, phi);
+        }
+    }
+
     /**
      * @param alpha
      */
@@ -1656,6 +2386,9 @@ public class WideFieldModel extends MicroscopeModel{
         if((alpha==null)||(alpha.length==0)){
             nPhase=0;
             parameterCoefs[PHASE] = null;
+            phiCoefs = null;
+            dirty |= PHI;
+            invalidate();
         }
         else{
             setNPhase(alpha.length);
@@ -1792,7 +2525,148 @@ public class WideFieldModel extends MicroscopeModel{
 
 
     /**
-     * @return the PSF
+     * Enable or disable the radial engine. When enabled (default is disabled)
+     * and the model is radial with a centered pupil, each slice is computed by
+     * a quasi-discrete Hankel transform of the pupil profile resampled on the
+     * grid instead of a 2D FFT. It approximates the continuous Fourier
+     * transform of the pupil and thus differs from the FFT-based PSF, mostly
+     * through the pixelated edge of the latter: by about 7% of the norm of
+     * the PSF for a pupil radius of 12 pixels and 1% for 25 pixels. The
+     * Jacobians are those of this approximation; as the pupil stays
+     * centered, the gradient along δx and δy is null.
+     * @param useHankel
+     */
+    public void setUseHankel(boolean useHankel) {
+        if (this.useHankel != useHankel) {
+            this.useHankel = useHankel;
+            invalidate();
+        }
+    }
+
+    /**
+     * @return true if the radial engine is enabled
+     */
+    public boolean isUsingHankel() {
+        return useHankel;
+    }
+
+    /**
+     * Enable or disable the phasor recurrence. When enabled (default is
+     * disabled), the pupil phasors exp(iΦ(z)) of consecutive slices are
+     * computed from each other by a complex multiplication instead of
+     * trigonometric functions. They are evaluated exactly every 16 slices
+     * at most, so that the PSF differs from the direct computation by a
+     * few rounding errors.
+     * @param usePhasorRecurrence
+     */
+    public void setUsePhasorRecurrence(boolean usePhasorRecurrence) {
+        if (this.usePhasorRecurrence != usePhasorRecurrence) {
+            this.usePhasorRecurrence = usePhasorRecurrence;
+            invalidate();
+        }
+    }
+
+    /**
+     * @return true if the phasor recurrence is enabled
+     */
+    public boolean isUsingPhasorRecurrence() {
+        return usePhasorRecurrence;
+    }
+
+    /**
+     * Enable or disable the phasor cache. When enabled (default is disabled),
+     * the pupil phasors exp(iΦ(z)) computed with the PSF are kept for every
+     * slice on the pupil support and reused by the Jacobians instead of being
+     * computed again. It costs 2 values per pixel of the support and per
+     * slice, in the precision of the model. The cache is only used while the
+     * PSF it was computed with is valid.
+     * @param usePhasorCache
+     */
+    public void setUsePhasorCache(boolean usePhasorCache) {
+        this.usePhasorCache = usePhasorCache;
+        if (!usePhasorCache) {
+            phasorCacheFilled = false;
+            phasorCache = null;
+            phasorCacheF = null;
+        }
+    }
+
+    /**
+     * @return true if the phasor cache is enabled
+     */
+    public boolean isUsingPhasorCache() {
+        return usePhasorCache;
+    }
+
+    /**
+     * Enable or disable the low memory mode. When enabled (default is
+     * disabled), the complex amplitude cpxPsf of the PSF is not kept: the
+     * Jacobians compute each of its slices again from ρ, φ and ψ (one more
+     * FFT per slice) and {@link #get_cpxPsf()} returns a new array each time.
+     * The memory used is then the PSF and a work buffer per thread.
+     * @param lowMemory
+     */
+    public void setLowMemory(boolean lowMemory) {
+        if (this.lowMemory != lowMemory) {
+            this.lowMemory = lowMemory;
+            if (lowMemory) {
+                cpxPsf = null;
+            } else {
+                /* cpxPsf has to be computed */
+                invalidate();
+            }
+        }
+    }
+
+    /**
+     * @return true if the low memory mode is enabled
+     */
+    public boolean isLowMemory() {
+        return lowMemory;
+    }
+
+    /**
+     * Enable or disable the use of the symmetry along z of the PSF. When
+     * enabled (default) and the phase is null, the slices at negative z are
+     * derived from the slices at positive z instead of being computed.
+     * @param useSymmetry
+     */
+    public void setUseSymmetry(boolean useSymmetry) {
+        this.useSymmetry = useSymmetry;
+    }
+
+    /**
+     * @return true if the symmetry along z of the PSF is used
+     */
+    public boolean isUsingSymmetry() {
+        return useSymmetry;
+    }
+
+    /**
+     * Enable or disable the limitation of the JTransforms threads. By default
+     * the model never changes the number of threads of JTransforms, which is
+     * a setting of the whole process: the FFTs use the threads set by the
+     * application, on top of the threads of the executor running the slices
+     * (set it to 1 to avoid running more threads than the executor). When
+     * enabled, each kernel lowers it with {@link FftThreads} while it runs so
+     * that slices and FFTs together use the threads of the executor; all the
+     * other JTransforms users of the process are then limited as well.
+     * @param limitFftThreads
+     */
+    public void setLimitFftThreads(boolean limitFftThreads) {
+        this.limitFftThreads = limitFftThreads;
+    }
+
+    /**
+     * @return true if the kernels limit the number of JTransforms threads
+     */
+    public boolean isLimitingFftThreads() {
+        return limitFftThreads;
+    }
+
+    /**
+     * @return the PSF. Its storage is reused by the next computation of the
+     * PSF, copy it if it has to be kept after a parameter update.
      */
     @Override
     public  Array3D getPsf() {
@@ -1803,36 +2677,333 @@ public class WideFieldModel extends MicroscopeModel{
         return psf;
     }
 
+    /**
+     * Compute the MTF (the 3D Fourier transform of the PSF).
+     * <p>
+     * The full spectrum is expanded from the half spectrum given by
+     * {@link #getHalfMtf()} using its Hermitian symmetry.
+     * @return the MTF as a complex array of shape (2, Nx, Ny, Nz)
+     */
     @Override
     public Array4D getMtf() {
-        if (PState<1){
-            computePsf();
-        }
+        final int Hx = Nx/2 + 1;
+        Array4D half = getHalfMtf();
         if (isSingle()) {
-            FloatFFT_3D FFT3D = new FloatFFT_3D(Nx, Ny,Nz);
+            float[] hmtf = ((Float4D) half).getData();
             float[] mtf = new float[2*Nx*Ny*Nz];
-            for (int i = 0; i <Nx*Ny*Nz; i=i++) {
-                mtf[2*i] = psf.toFloat().flatten()[i];
+            for (int kz = 0; kz < Nz; kz++) {
+                for (int ky = 0; ky < Ny; ky++) {
+                    for (int kx = 0; kx < Nx; kx++) {
+                        int out = 2*(kx + Nx*(ky + Ny*kz));
+                        if (kx < Hx) {
+                            int in = 2*(kx + Hx*(ky + Ny*kz));
+                            mtf[out] = hmtf[in];
+                            mtf[out + 1] = hmtf[in + 1];
+                        } else {
+                            int in = 2*((Nx - kx) + Hx*((Ny - ky)%Ny + Ny*((Nz - kz)%Nz)));
+                            mtf[out] = hmtf[in];
+                            mtf[out + 1] = -hmtf[in + 1];
+                        }
+                    }
+                }
             }
-            FFT3D.complexForward(mtf);
             return ArrayFactory.wrap(mtf, 2, Nx, Ny, Nz);
         }else {
-            DoubleFFT_3D FFT3D = new DoubleFFT_3D(Nx, Ny,Nz);
+            double[] hmtf = ((Double4D) half).getData();
             double[] mtf = new double[2*Nx*Ny*Nz];
-            for (int i = 0; i <Nx*Ny*Nz; i=i++) {
-                mtf[2*i] = psf.toDouble().flatten()[i];
+            for (int kz = 0; kz < Nz; kz++) {
+                for (int ky = 0; ky < Ny; ky++) {
+                    for (int kx = 0; kx < Nx; kx++) {
+                        int out = 2*(kx + Nx*(ky + Ny*kz));
+                        if (kx < Hx) {
+                            int in = 2*(kx + Hx*(ky + Ny*kz));
+                            mtf[out] = hmtf[in];
+                            mtf[out + 1] = hmtf[in + 1];
+                        } else {
+                            int in = 2*((Nx - kx) + Hx*((Ny - ky)%Ny + Ny*((Nz - kz)%Nz)));
+                            mtf[out] = hmtf[in];
+                            mtf[out + 1] = -hmtf[in + 1];
+                        }
+                    }
+                }
             }
-            FFT3D.complexForward(mtf);
             return ArrayFactory.wrap(mtf, 2, Nx, Ny, Nz);
         }
     }
 
+    /**
+     * Compute the modulus of the MTF.
+     * <p>
+     * Only the half spectrum is transformed, the modulus being symmetric.
+     * @return the modulus of the MTF as an array of shape (Nx, Ny, Nz)
+     */
+    public Array3D getMtfModulus() {
+        final int Hx = Nx/2 + 1;
+        Array4D half = getHalfMtf();
+        if (isSingle()) {
+            float[] hmtf = ((Float4D) half).getData();
+            float[] mtf = new float[Nx*Ny*Nz];
+            for (int kz = 0; kz < Nz; kz++) {
+                for (int ky = 0; ky < Ny; ky++) {
+                    for (int kx = 0; kx < Nx; kx++) {
+                        int in;
+                        if (kx < Hx) {
+                            in = 2*(kx + Hx*(ky + Ny*kz));
+                        } else {
+                            in = 2*((Nx - kx) + Hx*((Ny - ky)%Ny + Ny*((Nz - kz)%Nz)));
+                        }
+                        mtf[kx + Nx*(ky + Ny*kz)] = (float) Math.sqrt(hmtf[in]*hmtf[in] + hmtf[in + 1]*hmtf[in + 1]);
+                    }
+                }
+            }
+            return ArrayFactory.wrap(mtf, Nx, Ny, Nz);
+        }else {
+            double[] hmtf = ((Double4D) half).getData();
+            double[] mtf = new double[Nx*Ny*Nz];
+            for (int kz = 0; kz < Nz; kz++) {
+                for (int ky = 0; ky < Ny; ky++) {
+                    for (int kx = 0; kx < Nx; kx++) {
+                        int in;
+                        if (kx < Hx) {
+                            in = 2*(kx + Hx*(ky + Ny*kz));
+                        } else {
+                            in = 2*((Nx - kx) + Hx*((Ny - ky)%Ny + Ny*((Nz - kz)%Nz)));
+                        }
+                        mtf[kx + Nx*(ky + Ny*kz)] = Math.sqrt(hmtf[in]*hmtf[in] + hmtf[in + 1]*hmtf[in + 1]);
+                    }
+                }
+            }
+            return ArrayFactory.wrap(mtf, Nx, Ny, Nz);
+        }
+    }
+
+    /**
+     * Compute the non redundant half of the MTF.
+     * <p>
+     * As the PSF is real, its Fourier transform is Hermitian and only the
+     * frequencies 0 &le; kx &le; Nx/2 are computed. The transform is done with
+     * real to complex FFTs along x and complex FFTs along y, one task per
+     * plane, then complex FFTs along z, one task per ky.
+     * @return the half MTF as a complex array of shape (2, Nx/2+1, Ny, Nz)
+     */
+    public Array4D getHalfMtf() {
+        lockExecutor();
+        try {
+            if (PState<1){
+                computePsf();
+            }
+            final int Hx = Nx/2 + 1;
+            if (isSingle()) {
+                final float[] h = ((Float3D) psf).getData();
+                final float[] mtf = new float[2*Hx*Ny*Nz];
+                ParallelRange.forRange(kernelExecutor(), 0, Nz, new ParallelRange.Loop() {
+                    @Override
+                    public void run(int start, int end) {
+                        float[] line = new float[2*Math.max(Nx, Ny)];
+                        FloatFFT_1D fftx = FFTPlans.getFloatFFT1D(Nx);
+                        FloatFFT_1D ffty = FFTPlans.getFloatFFT1D(Ny);
+                        for (int iz = start; iz < end; iz++) {
+                            for (int iy = 0; iy < Ny; iy++) {
+                                System.arraycopy(h, Nx*(iy + Ny*iz), line, 0, Nx);
+                                fftx.realForwardFull(line);
+                                System.arraycopy(line, 0, mtf, 2*Hx*(iy + Ny*iz), 2*Hx);
+                            }
+                            for (int kx = 0; kx < Hx; kx++) {
+                                for (int iy = 0; iy < Ny; iy++) {
+                                    int in = 2*(kx + Hx*(iy + Ny*iz));
+                                    line[2*iy] = mtf[in];
+                                    line[2*iy + 1] = mtf[in + 1];
+                                }
+                                ffty.complexForward(line);
+                                for (int iy = 0; iy < Ny; iy++) {
+                                    int in = 2*(kx + Hx*(iy + Ny*iz));
+                                    mtf[in] = line[2*iy];
+                                    mtf[in + 1] = line[2*iy + 1];
+                                }
+                            }
+                        }
+                    }
+                });
+                ParallelRange.forRange(kernelExecutor(), 0, Ny, new ParallelRange.Loop() {
+                    @Override
+                    public void run(int start, int end) {
+                        float[] line = new float[2*Nz];
+                        FloatFFT_1D fftz = FFTPlans.getFloatFFT1D(Nz);
+                        for (int ky = start; ky < end; ky++) {
+                            for (int kx = 0; kx < Hx; kx++) {
+                                for (int iz = 0; iz < Nz; iz++) {
+                                    int in = 2*(kx + Hx*(ky + Ny*iz));
+                                    line[2*iz] = mtf[in];
+                                    line[2*iz + 1] = mtf[in + 1];
+                                }
+                                fftz.complexForward(line);
+                                for (int iz = 0; iz < Nz; iz++) {
+                                    int in = 2*(kx + Hx*(ky + Ny*iz));
+                                    mtf[in] = line[2*iz];
+                                    mtf[in + 1] = line[2*iz + 1];
+                                }
+                            }
+                        }
+                    }
+                });
+                return ArrayFactory.wrap(mtf, 2, Hx, Ny, Nz);
+            }else {
+                final double[] h = ((Double3D) psf).getData();
+                final double[] mtf = new double[2*Hx*Ny*Nz];
+                ParallelRange.forRange(kernelExecutor(), 0, Nz, new ParallelRange.Loop() {
+                    @Override
+                    public void run(int start, int end) {
+                        double[] line = new double[2*Math.max(Nx, Ny)];
+                        DoubleFFT_1D fftx = FFTPlans.getDoubleFFT1D(Nx);
+                        DoubleFFT_1D ffty = FFTPlans.getDoubleFFT1D(Ny);
+                        for (int iz = start; iz < end; iz++) {
+                            for (int iy = 0; iy < Ny; iy++) {
+                                System.arraycopy(h, Nx*(iy + Ny*iz), line, 0, Nx);
+                                fftx.realForwardFull(line);
+                                System.arraycopy(line, 0, mtf, 2*Hx*(iy + Ny*iz), 2*Hx);
+                            }
+                            for (int kx = 0; kx < Hx; kx++) {
+                                for (int iy = 0; iy < Ny; iy++) {
+                                    int in = 2*(kx + Hx*(iy + Ny*iz));
+                                    line[2*iy] = mtf[in];
+                                    line[2*iy + 1] = mtf[in + 1];
+                                }
+                                ffty.complexForward(line);
+                                for (int iy = 0; iy < Ny; iy++) {
+                                    int in = 2*(kx + Hx*(iy + Ny*iz));
+                                    mtf[in] = line[2*iy];
+                                    mtf[in + 1] = line[2*iy + 1];
+                                }
+                            }
+                        }
+                    }
+                });
+                ParallelRange.forRange(kernelExecutor(), 0, Ny, new ParallelRange.Loop() {
+                    @Override
+                    public void run(int start, int end) {
+                        double[] line = new double[2*Nz];
+                        DoubleFFT_1D fftz = FFTPlans.getDoubleFFT1D(Nz);
+                        for (int ky = start; ky < end; ky++) {
+                            for (int kx = 0; kx < Hx; kx++) {
+                                for (int iz = 0; iz < Nz; iz++) {
+                                    int in = 2*(kx + Hx*(ky + Ny*iz));
+                                    line[2*iz] = mtf[in];
+                                    line[2*iz + 1] = mtf[in + 1];
+                                }
+                                fftz.complexForward(line);
+                                for (int iz = 0; iz < Nz; iz++) {
+                                    int in = 2*(kx + Hx*(ky + Ny*iz));
+                                    mtf[in] = line[2*iz];
+                                    mtf[in + 1] = line[2*iz + 1];
+                                }
+                            }
+                        }
+                    }
+                });
+                return ArrayFactory.wrap(mtf, 2, Hx, Ny, Nz);
+            }
+        } finally {
+            unlockExecutor();
+        }
+    }
+
+    /**
+     * @return the executor of the model if the computation is parallel, null
+     * otherwise
+     */
+    private ExecutorService kernelExecutor() {
+        return (para ? getExecutorService() : null);
+    }
+
+    /**
+     * Run a loop over nSlices independent slices each doing 2D FFTs. If
+     * enabled by {@link #setLimitFftThreads(boolean)}, the threads are split
+     * between the slices and the FFTs by {@link #fftThreads(int)}.
+     * @param nSlices number of slices
+     * @param loop body of the loop
+     */
+    private void forSlices(int nSlices, ParallelRange.Loop loop) {
+        boolean limited = limitFftThreads;
+        if (limited) {
+            FftThreads.acquire(fftThreads(nSlices));
+        }
+        try {
+            ParallelRange.forRange(sliceExecutor(nSlices), 0, nSlices, loop);
+        } finally {
+            if (limited) {
+                FftThreads.release();
+            }
+        }
+    }
+
+    /**
+     * Run a loop accumulating a result over nSlices independent slices each
+     * doing 2D FFTs, see {@link #forSlices(int, ParallelRange.Loop)}.
+     * @param nSlices number of slices
+     * @param reduction body of the loop
+     * @return the accumulator of all the slices
+     */
+    private <T> T reduceSlices(int nSlices, ParallelRange.Reduction<T> reduction) {
+        boolean limited = limitFftThreads;
+        if (limited) {
+            FftThreads.acquire(fftThreads(nSlices));
+        }
+        try {
+            return ParallelRange.reduce(sliceExecutor(nSlices), 0, nSlices, reduction);
+        } finally {
+            if (limited) {
+                FftThreads.release();
+            }
+        }
+    }
+
+    /**
+     * @param nSlices number of independent slices of a kernel
+     * @return the executor to spread the slices over, null if they are computed sequentially
+     */
+    private ExecutorService sliceExecutor(int nSlices) {
+        return (sliceThreads(nSlices) > 1 ? getExecutorService() : null);
+    }
+
+    /**
+     * @param nSlices number of independent slices of a kernel
+     * @return the number of threads working on different slices
+     */
+    private int sliceThreads(int nSlices) {
+        return (para ? Math.max(1, Math.min(getExecutorParallelism(), nSlices)) : 1);
+    }
+
+    /**
+     * Get the number of threads used inside each JTransforms FFT for a kernel
+     * made of nSlices independent slices.
+     * <p>
+     * Slices are spread over the threads first as they need no
+     * synchronization. The threads left, when there are fewer slices than
+     * threads or when the computation is sequential, are given to the FFTs.
+     * This way the two levels of parallelism never run more threads than the
+     * executor. The limit is applied with {@link FftThreads} for the duration
+     * of the kernel only, and only if enabled by {@link #setLimitFftThreads(boolean)}.
+     * @param nSlices number of independent slices of the kernel
+     * @return the number of JTransforms threads, 0 when the slices are too
+     * small for JTransforms to use threads
+     */
+    private int fftThreads(int nSlices) {
+        if ((long) Nx*Ny < CommonUtils.getThreadsBeginN_2D()) {
+            return 0;
+        }
+        /* JTransforms splits the rows and columns in a power of 2 of blocks */
+        return Integer.highestOneBit(Math.max(1, getExecutorParallelism()/sliceThreads(nSlices)));
+    }
+
 
     /**
-     * @return the Zernike basis
+     * @return the Zernike basis. It may be shared with other models and must
+     * not be modified. Its first {@link #getNZern()} modes are those of the
+     * model, it may hold more. In single precision it is not kept by the model
+     * and is taken from the cache.
      */
     public double[] getZernike() {
-        return Z;
+        return (Z != null ? Z : cachedZernike());
     }
 
     /**
@@ -1847,7 +3018,7 @@ public class WideFieldModel extends MicroscopeModel{
      * @return the k-th zernike of the basis
      */
     public double[] getZernike(int k) {
-        return MathUtils.getArray(Z, Nx, Ny, k);
+        return MathUtils.getArray(getZernike(), Nx, Ny, k);
     }
 
     /**
@@ -1857,9 +3028,43 @@ public class WideFieldModel extends MicroscopeModel{
         if (PState<1){
             computePsf();
         }
+        if (cpxPsf == null){
+            return computeCpxPsf();
+        }
         return cpxPsf;
     }
 
+    /**
+     * Compute the complex PSF in low memory mode. It is not kept by the model.
+     * @return the complex PSF
+     */
+    private Array4D computeCpxPsf() {
+        lockExecutor();
+        try {
+            final int Npix = Nx*Ny;
+            final Array4D cpx = (isSingle() ? Float4D.create(cpxPsfShape) : Double4D.create(cpxPsfShape));
+            forSlices(Nz, new ParallelRange.Loop() {
+                @Override
+                public void run(int start, int end) {
+                    for (int iz = start; iz < end; iz++) {
+                        if (isSingle()) {
+                            float[] A = floatBuffer();
+                            amplitudeSlice(iz, A);
+                            System.arraycopy(A, 0, ((Float4D) cpx).getData(), 2*Npix*iz, 2*Npix);
+                        } else {
+                            double[] A = doubleBuffer();
+                            amplitudeSlice(iz, A);
+                            System.arraycopy(A, 0, ((Double4D) cpx).getData(), 2*Npix*iz, 2*Npix);
+                        }
+                    }
+                }
+            });
+            return cpx;
+        } finally {
+            unlockExecutor();
+        }
+    }
+
     /**
      * Plot some information about the WideFieldModel object for debugging purpose
      */
@@ -1886,11 +3091,11 @@ public class WideFieldModel extends MicroscopeModel{
         System.out.println();*/
 
         System.out.println("----a----");
-        MathUtils.statC(cpxPsf.toDouble().getData());
+        MathUtils.statC(get_cpxPsf().toDouble().getData());
         System.out.println();
 
         System.out.println("----ZERNIKES----");
-        MathUtils.stat(Z);
+        MathUtils.stat(getZernike());
     }
 
     /**
@@ -1965,12 +3170,41 @@ public class WideFieldModel extends MicroscopeModel{
     /**
      * reset PSF and its complex a  to free some memory
      * Set the flag PState to 0
+     * <p>
+     * To only mark the PSF as outdated while keeping its storage for the next
+     * computation, use {@link #invalidate()}.
      */
     @Override
     public void freeMem() {
         PState =0;
         cpxPsf = null;
         psf = null;
+        phasorCacheFilled = false;
+        phasorCache = null;
+        phasorCacheF = null;
+    }
+
+    /**
+     * Release the work buffers, including the ones kept by the threads of an
+     * injected executor.
+     */
+    @Override
+    protected void releaseBuffers() {
+        buffers.release();
+    }
+
+    /**
+     * @return the single precision pupil buffer of the calling thread
+     */
+    private float[] floatBuffer() {
+        return buffers.getFloat(PUPIL_BUFFER, 2*Nx*Ny);
+    }
+
+    /**
+     * @return the double precision pupil buffer of the calling thread
+     */
+    private double[] doubleBuffer() {
+        return buffers.getDouble(PUPIL_BUFFER, 2*Nx*Ny);
     }
 
 
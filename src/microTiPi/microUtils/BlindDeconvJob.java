@@ -56,6 +56,8 @@ public class BlindDeconvJob {
     private boolean run =false;
     private int[] maxIter;
     private WeightUpdater wghtUpdt=null;
+    private boolean jointEstimation = false;
+    private int jointMaxIter = -1;
 
     /**
      * Build the solver for blind deconvolution
@@ -115,6 +117,14 @@ public class BlindDeconvJob {
             }
             if (i<totalNbOfBlindDecLoop-1) {
                 psfEstimation.setObj(objArray);
+                if (jointEstimation) {
+                    fitJointPSF();
+                    //Emergency stop
+                    if (!run) {
+                        return objArray;
+                    }
+                    continue;
+                }
                 for (int j = 0; j < parametersFlags.length; j++) {
                     if (debug ) {
                         System.out.println("------------------");
@@ -137,6 +147,76 @@ public class BlindDeconvJob {
         return objArray;
     }
 
+    /**
+     * Estimate jointly all the parameters groups with a positive number of
+     * iterations. The number of iterations is the one given by
+     * {@link #setJointMaxIterations(int)}, or by default the sum of the
+     * iterations of these groups, i.e. the budget of the alternating scheme.
+     */
+    private void fitJointPSF() {
+        int nFlags = 0;
+        int nIter = 0;
+        for (int j = 0; j < parametersFlags.length; j++) {
+            if(maxIter[j]>0){
+                nFlags++;
+                nIter += maxIter[j];
+            }
+        }
+        if (jointMaxIter >= 0) {
+            nIter = jointMaxIter;
+        }
+        if (nFlags == 0 || nIter == 0) {
+            return;
+        }
+        int[] flags = new int[nFlags];
+        for (int j = 0, k = 0; j < parametersFlags.length; j++) {
+            if(maxIter[j]>0){
+                flags[k++] = parametersFlags[j];
+            }
+        }
+        if (debug ) {
+            System.out.println("------------------");
+            System.out.println("  joint estimation");
+            System.out.println("------------------");
+        }
+        psfEstimation.setRelativeTolerance(0.);
+        psfEstimation.setMaximumIterations(nIter);
+        psfEstimation.fitPSF(flags);
+    }
+
+    /**
+     * Estimate all the PSF parameters groups jointly instead of one after
+     * the other.
+     * @param jointEstimation
+     */
+    public void setJointEstimation(boolean jointEstimation) {
+        this.jointEstimation = jointEstimation;
+    }
+
+    /**
+     * @return true if the PSF parameters groups are estimated jointly
+     */
+    public boolean isJointEstimation() {
+        return jointEstimation;
+    }
+
+    /**
+     * Set the number of iterations of the joint PSF estimation. A negative
+     * value (the default) uses the sum of the iterations of the estimated
+     * groups.
+     * @param jointMaxIter
+     */
+    public void setJointMaxIterations(int jointMaxIter) {
+        this.jointMaxIter = jointMaxIter;
+    }
+
+    /**
+     * @return the number of iterations of the joint PSF estimation
+     */
+    public int getJointMaxIterations() {
+        return jointMaxIter;
+    }
+
     /**
      * Check whether the blind deconvolution is running
      * @return run
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+import org.jtransforms.fft.DoubleFFT_2D;
+import org.jtransforms.fft.FloatFFT_1D;
+import org.jtransforms.fft.FloatFFT_2D;
+
+/**
+ * Cache of FFT plans.
+ * <p>
+ * Building a JTransforms plan computes its twiddle factors, which is expensive
+ * compared to a single transform of a PSF slice. Plans are kept per thread
+ * (they are not meant to be shared between threads) and per size, so each
+ * worker of a long-lived pool builds a given plan only once.
+ *
+ * @author Ferréol
+ */
+public final class FFTPlans {
+
+    private static final ThreadLocal<Map<Long, FloatFFT_2D>> float2D = new ThreadLocal<Map<Long, FloatFFT_2D>>() {
+        @Override
+        protected Map<Long, FloatFFT_2D> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private static final ThreadLocal<Map<Long, DoubleFFT_2D>> double2D = new ThreadLocal<Map<Long, DoubleFFT_2D>>() {
+        @Override
+        protected Map<Long, DoubleFFT_2D> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private static final ThreadLocal<Map<Long, FloatFFT_1D>> float1D = new ThreadLocal<Map<Long, FloatFFT_1D>>() {
+        @Override
+        protected Map<Long, FloatFFT_1D> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private static final ThreadLocal<Map<Long, DoubleFFT_1D>> double1D = new ThreadLocal<Map<Long, DoubleFFT_1D>>() {
+        @Override
+        protected Map<Long, DoubleFFT_1D> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private FFTPlans() {
+    }
+
+    private static Long key(int rows, int columns) {
+        return (((long) rows) << 32) | (columns & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get a single precision 2D FFT plan confined to the calling thread
+     * @param rows number of rows
+     * @param columns number of columns
+     * @return the plan
+     */
+    public static FloatFFT_2D getFloatFFT2D(int rows, int columns) {
+        Map<Long, FloatFFT_2D> plans = float2D.get();
+        Long k = key(rows, columns);
+        FloatFFT_2D fft = plans.get(k);
+        if (fft == null) {
+            fft = new FloatFFT_2D(rows, columns);
+            plans.put(k, fft);
+        }
+        return fft;
+    }
+
+    /**
+     * Get a double precision 2D FFT plan confined to the calling thread
+     * @param rows number of rows
+     * @param columns number of columns
+     * @return the plan
+     */
+    public static DoubleFFT_2D getDoubleFFT2D(int rows, int columns) {
+        Map<Long, DoubleFFT_2D> plans = double2D.get();
+        Long k = key(rows, columns);
+        DoubleFFT_2D fft = plans.get(k);
+        if (fft == null) {
+            fft = new DoubleFFT_2D(rows, columns);
+            plans.put(k, fft);
+        }
+        return fft;
+    }
+
+    /**
+     * Get a single precision 1D FFT plan confined to the calling thread
+     * @param n size of the transform
+     * @return the plan
+     */
+    public static FloatFFT_1D getFloatFFT1D(int n) {
+        Map<Long, FloatFFT_1D> plans = float1D.get();
+        Long k = key(1, n);
+        FloatFFT_1D fft = plans.get(k);
+        if (fft == null) {
+            fft = new FloatFFT_1D(n);
+            plans.put(k, fft);
+        }
+        return fft;
+    }
+
+    /**
+     * Get a double precision 1D FFT plan confined to the calling thread
+     * @param n size of the transform
+     * @return the plan
+     */
+    public static DoubleFFT_1D getDoubleFFT1D(int n) {
+        Map<Long, DoubleFFT_1D> plans = double1D.get();
+        Long k = key(1, n);
+        DoubleFFT_1D fft = plans.get(k);
+        if (fft == null) {
+            fft = new DoubleFFT_1D(n);
+            plans.put(k, fft);
+        }
+        return fft;
+    }
+}
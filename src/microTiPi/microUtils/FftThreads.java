@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microUtils;
+
+import pl.edu.icm.jlargearrays.ConcurrencyUtils;
+
+/**
+ * Process-wide limit on the number of threads of the JTransforms FFTs.
+ * <p>
+ * JTransforms reads its number of threads from a global setting. Kernels
+ * that already run their FFTs from several threads lower it between
+ * {@link #acquire(int)} and {@link #release()}. The setting is saved by the
+ * first kernel, lowered to the smallest limit requested by the kernels
+ * running at the same time, and restored when the last one ends unless it
+ * has been changed meanwhile by someone else. Other JTransforms users running
+ * meanwhile are limited too: the models only use it when asked to.
+ *
+ * @author Ferréol
+ */
+public final class FftThreads {
+
+    private static int users = 0; // number of kernels between acquire and release
+    private static int saved; // setting before the first kernel
+    private static int limit = Integer.MAX_VALUE; // smallest limit of the running kernels
+
+    private FftThreads() {
+    }
+
+    /**
+     * Start a kernel limiting the number of threads of each FFT. It must be
+     * followed by {@link #release()}, in a finally block.
+     * @param threads maximum number of threads of each FFT, 0 for no limit
+     */
+    public static synchronized void acquire(int threads) {
+        if (users++ == 0) {
+            saved = ConcurrencyUtils.getNumberOfThreads();
+        }
+        if ((threads > 0) && (threads < limit)) {
+            limit = threads;
+            ConcurrencyUtils.setNumberOfThreads(threads);
+        }
+    }
+
+    /**
+     * End a kernel started by {@link #acquire(int)}. The last kernel restores
+     * the setting found by the first one, if it is still the limit set by
+     * the kernels: a value set by someone else in between is kept.
+     */
+    public static synchronized void release() {
+        if (users <= 0) {
+            throw new IllegalStateException("FftThreads released more than acquired");
+        }
+        if (--users == 0) {
+            if ((limit != Integer.MAX_VALUE) && (ConcurrencyUtils.getNumberOfThreads() == limit)) {
+                ConcurrencyUtils.setNumberOfThreads(saved);
+            }
+            limit = Integer.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microUtils;
+
+import java.util.Arrays;
+
+/**
+ * Quasi-discrete Hankel transform of order 0.
+ * <p>
+ * It computes g(r) = 2π ∫ f(κ) J0(2π κ r) κ dκ, the 2D Fourier transform of a
+ * radially symmetric function, for f limited to κ &lt; K and g limited to
+ * r &lt; R. With S = 2π K R and j_n the zeros of J0, the frequencies are
+ * κ_n = j_n K / S, the radii are r_m = j_m R / S and
+ * <p>
+ * g(r_m) = Σ_n f(κ_n) J0(j_n j_m / S) / (π R² J1(j_n)²)
+ * <p>
+ * (M. Guizar-Sicairos and J. C. Gutiérrez-Vega, JOSA A 21, 53-58, 2004).
+ * Only the frequencies where f may be non null (κ_n &lt; kMax) are kept and
+ * the sample r = 0 is added in front of the radii, so that a function given
+ * on a Cartesian grid can be interpolated from the radii.
+ *
+ * @author Ferréol
+ */
+public class HankelTransform {
+
+    private final int nK; // number of frequencies
+    private final int nR; // number of radii (including r = 0)
+    private final double[] kappa; // frequencies κ_n
+    private final double[] r; // radii r_m
+    private final double[] kernel; // transform matrix, nR x nK, row by row
+
+    /**
+     * @param K bandwidth, it sets the radial sampling step to about 1/(2K)
+     * @param R maximal radius, it sets the frequency sampling step to about 1/(2R)
+     * @param kMax frequency above which f is null (kMax &le; K)
+     */
+    public HankelTransform(double K, double R, double kMax) {
+        if ((kMax > K) || (kMax <= 0) || (R <= 0)) {
+            throw new IllegalArgumentException("Bad Hankel transform sampling");
+        }
+        double S = 2*Math.PI*K*R;
+        double[] zeros = besselJ0Zeros(S);
+        int N = zeros.length;
+        int n = 0;
+        while ((n < N) && (zeros[n]*K/S < kMax)) {
+            n++;
+        }
+        nK = n;
+        nR = N + 1;
+        kappa = new double[nK];
+        r = new double[nR];
+        for (int k = 0; k < nK; k++) {
+            kappa[k] = zeros[k]*K/S;
+        }
+        for (int m = 0; m < N; m++) {
+            r[m + 1] = zeros[m]*R/S;
+        }
+        kernel = new double[nR*nK];
+        for (int k = 0; k < nK; k++) {
+            double j1 = j1(zeros[k]);
+            double norm = 1/(Math.PI*R*R*j1*j1);
+            kernel[k] = norm; // r = 0
+            for (int m = 1; m < nR; m++) {
+                kernel[k + nK*m] = j0(zeros[k]*zeros[m - 1]/S)*norm;
+            }
+        }
+    }
+
+    /**
+     * @return the frequencies κ_n where f is sampled
+     */
+    public double[] getFrequencies() {
+        return kappa;
+    }
+
+    /**
+     * @return the radii r_m where g is computed, starting with r = 0
+     */
+    public double[] getRadii() {
+        return r;
+    }
+
+    /**
+     * Transform a complex function
+     * @param f complex values at the frequencies (re, im interleaved)
+     * @param g complex values at the radii (re, im interleaved), output
+     */
+    public void transform(double[] f, double[] g) {
+        for (int m = 0; m < nR; m++) {
+            double re = 0, im = 0;
+            int off = nK*m;
+            for (int k = 0; k < nK; k++) {
+                re += kernel[off + k]*f[2*k];
+                im += kernel[off + k]*f[2*k + 1];
+            }
+            g[2*m] = re;
+            g[2*m + 1] = im;
+        }
+    }
+
+    /**
+     * Apply the transpose of the transform
+     * @param g complex values at the radii (re, im interleaved)
+     * @param f complex values at the frequencies (re, im interleaved), output
+     */
+    public void transformTranspose(double[] g, double[] f) {
+        Arrays.fill(f, 0, 2*nK, 0.);
+        for (int m = 0; m < nR; m++) {
+            double re = g[2*m];
+            double im = g[2*m + 1];
+            int off = nK*m;
+            for (int k = 0; k < nK; k++) {
+                f[2*k] += kernel[off + k]*re;
+                f[2*k + 1] += kernel[off + k]*im;
+            }
+        }
+    }
+
+    /**
+     * Compute the positive zeros of J0 lower than max. They are initialized
+     * by the McMahon expansion and refined by Newton's method.
+     * @param max
+     * @return the zeros
+     */
+    public static double[] besselJ0Zeros(double max) {
+        int n = (int) (max/Math.PI + 2);
+        double[] zeros = new double[n];
+        int count = 0;
+        for (int k = 1; k <= n; k++) {
+            double b = (k - 0.25)*Math.PI;
+            double x = b + 1/(8*b) - 124/(3*Math.pow(8*b, 3));
+            for (int it = 0; it < 10; it++) {
+                double dx = j0(x)/j1(x);
+                x += dx;
+                if (Math.abs(dx) < 1e-13*x) {
+                    break;
+                }
+            }
+            if (x >= max) {
+                break;
+            }
+            zeros[count++] = x;
+        }
+        double[] out = new double[count];
+        System.arraycopy(zeros, 0, out, 0, count);
+        return out;
+    }
+
+    /**
+     * Bessel function of the first kind of order 0 (rational and asymptotic
+     * approximations, absolute accuracy about 1e-8)
+     * @param x
+     * @return J0(x)
+     */
+    public static double j0(double x) {
+        double ax = Math.abs(x);
+        if (ax < 8.0) {
+            double y = x*x;
+            double ans1 = 57568490574.0 + y*(-13362590354.0 + y*(651619640.7
+                    + y*(-11214424.18 + y*(77392.33017 + y*(-184.9052456)))));
+            double ans2 = 57568490411.0 + y*(1029532985.0 + y*(9494680.718
+                    + y*(59272.64853 + y*(267.8532712 + y*1.0))));
+            return ans1/ans2;
+        }
+        double z = 8.0/ax;
+        double y = z*z;
+        double xx = ax - 0.785398164;
+        double ans1 = 1.0 + y*(-0.1098628627e-2 + y*(0.2734510407e-4
+                + y*(-0.2073370639e-5 + y*0.2093887211e-6)));
+        double ans2 = -0.1562499995e-1 + y*(0.1430488765e-3
+                + y*(-0.6911147651e-5 + y*(0.7621095161e-6 - y*0.934935152e-7)));
+        return Math.sqrt(0.636619772/ax)*(Math.cos(xx)*ans1 - z*Math.sin(xx)*ans2);
+    }
+
+    /**
+     * Bessel function of the first kind of order 1 (rational and asymptotic
+     * approximations, absolute accuracy about 1e-8)
+     * @param x
+     * @return J1(x)
+     */
+    public static double j1(double x) {
+        double ax = Math.abs(x);
+        if (ax < 8.0) {
+            double y = x*x;
+            double ans1 = x*(72362614232.0 + y*(-7895059235.0 + y*(242396853.1
+                    + y*(-2972611.439 + y*(15704.48260 + y*(-30.16036606))))));
+            double ans2 = 144725228442.0 + y*(2300535178.0 + y*(18583304.74
+                    + y*(99447.43394 + y*(376.9991397 + y*1.0))));
+            return ans1/ans2;
+        }
+        double z = 8.0/ax;
+        double y = z*z;
+        double xx = ax - 2.356194491;
+        double ans1 = 1.0 + y*(0.183105e-2 + y*(-0.3516396496e-4
+                + y*(0.2457520174e-5 + y*(-0.240337019e-6))));
+        double ans2 = 0.04687499995 + y*(-0.2002690873e-3
+                + y*(0.8449199096e-5 + y*(-0.88228987e-6 + y*0.105787412e-6)));
+        double ans = Math.sqrt(0.636619772/ax)*(Math.cos(xx)*ans1 - z*Math.sin(xx)*ans2);
+        return (x < 0.0 ? -ans : ans);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microUtils;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Dense matrix-vector products with a matrix stored row after row, as the
+ * Zernike bases packed on the pupil support (one mode after the other).
+ * <p>
+ * The columns (pixels) are processed by blocks small enough for the block
+ * of the result or of the input vector to stay in cache while the rows are
+ * streamed, four rows at a time. The blocks are independent tasks when an
+ * executor is given. The sums are done in double precision, also for the
+ * single precision matrices.
+ *
+ * @author Ferréol
+ */
+public final class MatrixVector {
+
+    /** number of columns in a block */
+    private static final int BLOCK = 2048;
+
+    /* per-thread sums of a block of a single precision product */
+    private static final ThreadLocal<double[]> blockBuffer = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[BLOCK];
+        }
+    };
+
+    private MatrixVector() {
+    }
+
+    /**
+     * Compute y = Σ_k c_k A_k where A_k is the row k of a matrix.
+     * @param A the matrix, row k is A[offset + k*len] to A[offset + (k+1)*len - 1]
+     * @param len number of columns
+     * @param offset index in A of the first row
+     * @param c coefficients of the rows, its length is the number of rows
+     * @param y result of length len
+     * @param executor executor to run the blocks in parallel, null for a sequential computation
+     */
+    public static void multiply(final double[] A, final int len, final int offset, final double[] c,
+            final double[] y, ExecutorService executor) {
+        run(len, executor, new Block() {
+            @Override
+            public void compute(int p0, int p1) {
+                multiplyBlock(A, len, offset, c, y, p0, p1);
+            }
+        });
+    }
+
+    /**
+     * Compute y = Σ_k c_k A_k where A_k is the row k of a single precision matrix.
+     * @param A the matrix, row k is A[offset + k*len] to A[offset + (k+1)*len - 1]
+     * @param len number of columns
+     * @param offset index in A of the first row
+     * @param c coefficients of the rows, its length is the number of rows
+     * @param y result of length len
+     * @param executor executor to run the blocks in parallel, null for a sequential computation
+     */
+    public static void multiply(final float[] A, final int len, final int offset, final double[] c,
+            final float[] y, ExecutorService executor) {
+        run(len, executor, new Block() {
+            @Override
+            public void compute(int p0, int p1) {
+                multiplyBlock(A, len, offset, c, y, p0, p1);
+            }
+        });
+    }
+
+    /**
+     * Compute g_k = Σ_p A_k[p] x[p] where A_k is the row k of a matrix.
+     * @param A the matrix, row k is A[offset + k*len] to A[offset + (k+1)*len - 1]
+     * @param len number of columns
+     * @param offset index in A of the first row
+     * @param x vector of length len
+     * @param g result, its length is the number of rows
+     * @param executor executor to run the blocks in parallel, null for a sequential computation
+     */
+    public static void multiplyTranspose(final double[] A, final int len, final int offset, final double[] x,
+            final double[] g, ExecutorService executor) {
+        final double[][] partial = new double[numberOfBlocks(len)][];
+        run(len, executor, new Block() {
+            @Override
+            public void compute(int p0, int p1) {
+                partial[p0/BLOCK] = multiplyTransposeBlock(A, len, offset, x, g.length, p0, p1);
+            }
+        });
+        sum(partial, g);
+    }
+
+    /**
+     * Compute g_k = Σ_p A_k[p] x[p] where A_k is the row k of a single precision matrix.
+     * @param A the matrix, row k is A[offset + k*len] to A[offset + (k+1)*len - 1]
+     * @param len number of columns
+     * @param offset index in A of the first row
+     * @param x vector of length len
+     * @param g result, its length is the number of rows
+     * @param executor executor to run the blocks in parallel, null for a sequential computation
+     */
+    public static void multiplyTranspose(final float[] A, final int len, final int offset, final double[] x,
+            final double[] g, ExecutorService executor) {
+        final double[][] partial = new double[numberOfBlocks(len)][];
+        run(len, executor, new Block() {
+            @Override
+            public void compute(int p0, int p1) {
+                partial[p0/BLOCK] = multiplyTransposeBlock(A, len, offset, x, g.length, p0, p1);
+            }
+        });
+        sum(partial, g);
+    }
+
+    private interface Block {
+        void compute(int p0, int p1);
+    }
+
+    private static int numberOfBlocks(int len) {
+        return (len + BLOCK - 1)/BLOCK;
+    }
+
+    /* Run the blocks of columns, in parallel if possible */
+    private static void run(final int len, ExecutorService executor, final Block block) {
+        ParallelRange.forRange(executor, 0, numberOfBlocks(len), new ParallelRange.Loop() {
+            @Override
+            public void run(int b0, int b1) {
+                for (int b = b0; b < b1; b++) {
+                    block.compute(b*BLOCK, Math.min(len, (b + 1)*BLOCK));
+                }
+            }
+        });
+    }
+
+    /* Sum the partial results of the blocks in a fixed order */
+    private static void sum(double[][] partial, double[] g) {
+        for (int k = 0; k < g.length; k++) {
+            g[k] = 0;
+        }
+        for (double[] part : partial) {
+            for (int k = 0; k < g.length; k++) {
+                g[k] += part[k];
+            }
+        }
+    }
+
+    private static void multiplyBlock(double[] A, int len, int offset, double[] c, double[] y, int p0, int p1) {
+        final int nRows = c.length;
+        for (int p = p0; p < p1; p++) {
+            y[p] = 0;
+        }
+        int k = 0;
+        for (; k + 3 < nRows; k += 4) {
+            final int o0 = offset + k*len;
+            final int o1 = o0 + len;
+            final int o2 = o1 + len;
+            final int o3 = o2 + len;
+            final double c0 = c[k], c1 = c[k + 1], c2 = c[k + 2], c3 = c[k + 3];
+            for (int p = p0; p < p1; p++) {
+                y[p] += c0*A[o0 + p] + c1*A[o1 + p] + c2*A[o2 + p] + c3*A[o3 + p];
+            }
+        }
+        for (; k < nRows; k++) {
+            final int o0 = offset + k*len;
+            final double c0 = c[k];
+            for (int p = p0; p < p1; p++) {
+                y[p] += c0*A[o0 + p];
+            }
+        }
+    }
+
+    private static void multiplyBlock(float[] A, int len, int offset, double[] c, float[] y, int p0, int p1) {
+        final int nRows = c.length;
+        final double[] tmp = blockBuffer.get();
+        Arrays.fill(tmp, 0, p1 - p0, 0.);
+        int k = 0;
+        for (; k + 3 < nRows; k += 4) {
+            final int o0 = offset + k*len;
+            final int o1 = o0 + len;
+            final int o2 = o1 + len;
+            final int o3 = o2 + len;
+            final double c0 = c[k], c1 = c[k + 1], c2 = c[k + 2], c3 = c[k + 3];
+            for (int p = p0; p < p1; p++) {
+                tmp[p - p0] += c0*A[o0 + p] + c1*A[o1 + p] + c2*A[o2 + p] + c3*A[o3 + p];
+            }
+        }
+        for (; k < nRows; k++) {
+            final int o0 = offset + k*len;
+            final double c0 = c[k];
+            for (int p = p0; p < p1; p++) {
+                tmp[p - p0] += c0*A[o0 + p];
+            }
+        }
+        for (int p = p0; p < p1; p++) {
+            y[p] = (float) tmp[p - p0];
+        }
+    }
+
+    private static double[] multiplyTransposeBlock(double[] A, int len, int offset, double[] x, int nRows, int p0, int p1) {
+        final double[] g = new double[nRows];
+        int k = 0;
+        for (; k + 3 < nRows; k += 4) {
+            final int o0 = offset + k*len;
+            final int o1 = o0 + len;
+            final int o2 = o1 + len;
+            final int o3 = o2 + len;
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for (int p = p0; p < p1; p++) {
+                final double xp = x[p];
+                s0 += A[o0 + p]*xp;
+                s1 += A[o1 + p]*xp;
+                s2 += A[o2 + p]*xp;
+                s3 += A[o3 + p]*xp;
+            }
+            g[k] = s0;
+            g[k + 1] = s1;
+            g[k + 2] = s2;
+            g[k + 3] = s3;
+        }
+        for (; k < nRows; k++) {
+            final int o0 = offset + k*len;
+            double s0 = 0;
+            for (int p = p0; p < p1; p++) {
+                s0 += A[o0 + p]*x[p];
+            }
+            g[k] = s0;
+        }
+        return g;
+    }
+
+    private static double[] multiplyTransposeBlock(float[] A, int len, int offset, double[] x, int nRows, int p0, int p1) {
+        final double[] g = new double[nRows];
+        int k = 0;
+        for (; k + 3 < nRows; k += 4) {
+            final int o0 = offset + k*len;
+            final int o1 = o0 + len;
+            final int o2 = o1 + len;
+            final int o3 = o2 + len;
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for (int p = p0; p < p1; p++) {
+                final double xp = x[p];
+                s0 += A[o0 + p]*xp;
+                s1 += A[o1 + p]*xp;
+                s2 += A[o2 + p]*xp;
+                s3 += A[o3 + p]*xp;
+            }
+            g[k] = s0;
+            g[k + 1] = s1;
+            g[k + 2] = s2;
+            g[k + 3] = s3;
+        }
+        for (; k < nRows; k++) {
+            final int o0 = offset + k*len;
+            double s0 = 0;
+            for (int p = p0; p < p1; p++) {
+                s0 += A[o0 + p]*x[p];
+            }
+            g[k] = s0;
+        }
+        return g;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel loops over a range of indices.
+ * <p>
+ * The range is cut in chunks of consecutive indices, about {@link #CHUNKS_PER_THREAD}
+ * chunks per thread, so that the work stealing of a {@link ForkJoinPool}
+ * absorbs the load imbalance between indices without paying the overhead of
+ * one task per index. In a reduction, each chunk gets its own accumulator and
+ * the accumulators are merged in the order of the indices, so the result only
+ * depends on the chunks, i.e. on the grain, and never on the scheduling.
+ * <p>
+ * Any exception thrown by the body of the loop is propagated to the caller.
+ * With an executor that is not a ForkJoinPool, the chunks are submitted as
+ * independent tasks. Without executor the loop is sequential.
+ *
+ * @author Ferréol
+ */
+public final class ParallelRange {
+
+    /** number of chunks per thread of the executor */
+    public static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Body of a loop.
+     */
+    public interface Loop {
+        /**
+         * Run the loop for the indices start to end-1.
+         * @param start first index
+         * @param end index after the last one
+         */
+        void run(int start, int end);
+    }
+
+    /**
+     * Body of a loop accumulating a result.
+     * @param <T> type of the accumulator
+     */
+    public interface Reduction<T> {
+        /**
+         * @return a new empty accumulator
+         */
+        T create();
+
+        /**
+         * Run the loop for the indices start to end-1.
+         * @param start first index
+         * @param end index after the last one
+         * @param acc accumulator of the chunk
+         */
+        void run(int start, int end, T acc);
+
+        /**
+         * Merge the accumulator of the next indices in acc.
+         * @param acc accumulator
+         * @param next accumulator of the following chunk
+         */
+        void merge(T acc, T next);
+    }
+
+    private ParallelRange() {
+    }
+
+    /**
+     * Run a loop over the indices start to end-1.
+     * @param executor executor to run the chunks in parallel, null for a sequential loop
+     * @param start first index
+     * @param end index after the last one
+     * @param loop body of the loop
+     */
+    public static void forRange(ExecutorService executor, int start, int end, Loop loop) {
+        forRange(executor, start, end, grain(executor, end - start), loop);
+    }
+
+    /**
+     * Run a loop over the indices start to end-1.
+     * @param executor executor to run the chunks in parallel, null for a sequential loop
+     * @param start first index
+     * @param end index after the last one
+     * @param grain maximum number of indices of a chunk
+     * @param loop body of the loop
+     */
+    public static void forRange(ExecutorService executor, final int start, final int end, final int grain,
+            final Loop loop) {
+        if (end <= start) {
+            return;
+        }
+        if ((executor == null) || (end - start <= grain)) {
+            loop.run(start, end);
+        } else if (executor instanceof ForkJoinPool) {
+            ((ForkJoinPool) executor).invoke(new RangeAction(loop, start, end, grain));
+        } else {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = start; i < end; i += grain) {
+                final int i0 = i;
+                final int i1 = Math.min(end, i + grain);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        loop.run(i0, i1);
+                        return null;
+                    }
+                });
+            }
+            getAll(executor, tasks);
+        }
+    }
+
+    /**
+     * Run a loop accumulating a result over the indices start to end-1.
+     * @param executor executor to run the chunks in parallel, null for a sequential loop
+     * @param start first index
+     * @param end index after the last one
+     * @param reduction body of the loop
+     * @return the accumulator of all the indices
+     */
+    public static <T> T reduce(ExecutorService executor, int start, int end, Reduction<T> reduction) {
+        return reduce(executor, start, end, grain(executor, end - start), reduction);
+    }
+
+    /**
+     * Run a loop accumulating a result over the indices start to end-1.
+     * The chunks of grain consecutive indices are accumulated separately
+     * and merged in increasing order of indices: for a given grain, the
+     * result is the same from one run to the next whatever the executor.
+     * @param executor executor to run the chunks in parallel, null for a sequential loop
+     * @param start first index
+     * @param end index after the last one
+     * @param grain maximum number of indices of a chunk
+     * @param reduction body of the loop
+     * @return the accumulator of all the indices
+     */
+    public static <T> T reduce(ExecutorService executor, final int start, final int end, final int grain,
+            final Reduction<T> reduction) {
+        if ((executor == null) || (end - start <= grain)) {
+            T acc = reduction.create();
+            if (end > start) {
+                reduction.run(start, end, acc);
+            }
+            return acc;
+        }
+        /* accumulator of each chunk, created by the task running the chunk */
+        final int nChunks = (end - start + grain - 1)/grain;
+        final List<T> accs = new ArrayList<>(nChunks);
+        for (int c = 0; c < nChunks; c++) {
+            accs.add(null);
+        }
+        forRange(executor, 0, nChunks, 1, new Loop() {
+            @Override
+            public void run(int c0, int c1) {
+                for (int c = c0; c < c1; c++) {
+                    T acc = reduction.create();
+                    reduction.run(start + c*grain, Math.min(end, start + (c + 1)*grain), acc);
+                    synchronized (accs) {
+                        accs.set(c, acc);
+                    }
+                }
+            }
+        });
+        /* merge in the order of the indices */
+        T acc = accs.get(0);
+        for (int c = 1; c < nChunks; c++) {
+            reduction.merge(acc, accs.get(c));
+            accs.set(c, null);
+        }
+        return acc;
+    }
+
+    /* Size of the chunks giving CHUNKS_PER_THREAD chunks per thread */
+    private static int grain(ExecutorService executor, int length) {
+        int threads = ((executor instanceof ForkJoinPool) ? ((ForkJoinPool) executor).getParallelism()
+                : Runtime.getRuntime().availableProcessors());
+        int chunks = CHUNKS_PER_THREAD*threads;
+        return Math.max(1, (length + chunks - 1)/chunks);
+    }
+
+    /* Submit the tasks and wait for their results in order, the first failure is rethrown */
+    private static <T> List<T> getAll(ExecutorService executor, List<Callable<T>> tasks) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    @SuppressWarnings("serial")
+    private static final class RangeAction extends RecursiveAction {
+        private final Loop loop;
+        private final int start;
+        private final int end;
+        private final int grain;
+
+        RangeAction(Loop loop, int start, int end, int grain) {
+            this.loop = loop;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= grain) {
+                loop.run(start, end);
+            } else {
+                int middle = split(start, end, grain);
+                invokeAll(new RangeAction(loop, start, middle, grain), new RangeAction(loop, middle, end, grain));
+            }
+        }
+    }
+
+    /* Split on a chunk boundary so that the chunks are the same as without stealing */
+    private static int split(int start, int end, int grain) {
+        int nChunks = (end - start + grain - 1)/grain;
+        return start + (nChunks/2)*grain;
+    }
+}
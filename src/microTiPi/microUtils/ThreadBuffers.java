@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Work arrays confined to the calling thread.
+ * <p>
+ * Each thread gets its own arrays, identified by a slot number, that are
+ * reused from one call to the next as long as the requested length does not
+ * change. Unlike a plain ThreadLocal, all the arrays of all the threads can
+ * be released at once with {@link #release()}: the threads of a long-lived
+ * executor then only keep an empty holder once the owner is discarded.
+ *
+ * @author Ferréol
+ */
+public final class ThreadBuffers {
+
+    /* arrays of one thread, replaced by release() from another thread */
+    private static final class Buffers {
+        volatile float[][] floats;
+        volatile double[][] doubles;
+
+        Buffers(int nSlots) {
+            floats = new float[nSlots][];
+            doubles = new double[nSlots][];
+        }
+    }
+
+    private final int nSlots;
+    private final List<Buffers> all = new ArrayList<>(); // buffers of all the threads, guarded by itself
+    private final ThreadLocal<Buffers> local = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            Buffers buffers = new Buffers(nSlots);
+            synchronized (all) {
+                all.add(buffers);
+            }
+            return buffers;
+        }
+    };
+
+    /**
+     * @param nSlots number of arrays of each type per thread
+     */
+    public ThreadBuffers(int nSlots) {
+        this.nSlots = nSlots;
+    }
+
+    /**
+     * Get a single precision work array of the calling thread. Its content
+     * is the one left by the previous user of the slot in this thread.
+     * @param slot index of the array
+     * @param length length of the array
+     * @return the array
+     */
+    public float[] getFloat(int slot, int length) {
+        float[][] floats = local.get().floats;
+        float[] array = floats[slot];
+        if ((array == null) || (array.length != length)) {
+            array = new float[length];
+            floats[slot] = array;
+        }
+        return array;
+    }
+
+    /**
+     * Get a double precision work array of the calling thread. Its content
+     * is the one left by the previous user of the slot in this thread.
+     * @param slot index of the array
+     * @param length length of the array
+     * @return the array
+     */
+    public double[] getDouble(int slot, int length) {
+        double[][] doubles = local.get().doubles;
+        double[] array = doubles[slot];
+        if ((array == null) || (array.length != length)) {
+            array = new double[length];
+            doubles[slot] = array;
+        }
+        return array;
+    }
+
+    /**
+     * Release the arrays of all the threads. They are allocated again if
+     * needed. It must not be called while the arrays are in use.
+     */
+    public void release() {
+        synchronized (all) {
+            for (Buffers buffers : all) {
+                buffers.floats = new float[nSlots][];
+                buffers.doubles = new double[nSlots][];
+            }
+        }
+    }
+}
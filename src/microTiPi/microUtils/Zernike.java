@@ -24,6 +24,11 @@
 
 package microTiPi.microUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
 import mitiv.utils.MathUtils;
 /** Compute Zernike polynomials
  *
@@ -104,7 +109,10 @@ public class Zernike
 
     /**
      * Create Nzern Zernike polynomials over a radius
-     * Pre-compute the power distance r, r^2 = r*r, r^3=r^2*r, ect.
+     * The radial polynomials are computed by recurrence on the pixels of the
+     * pupil disk only. The computation is sequential, see
+     * {@link #zernikeArray(int, int, int, int, double, boolean, boolean, ExecutorService)}
+     * to compute the modes of each azimuthal order m in parallel.
      * Z_even(r,theta) = R_mn*zr*cos(m*theta)
      * Z_odd(r,theta) = R_mn*zr*sin(m*theta)
      * Zr(r) =
@@ -118,173 +126,465 @@ public class Zernike
      */
     public static double[] zernikeArray(int nbZernike, int width, int height, double radius, boolean normalize,boolean radial)
     {
+        return zernikeArray(0, nbZernike, width, height, radius, normalize, radial, null);
+    }
 
-        double Z[] =  new double[nbZernike*width*height];
-        int WH = width*height;
+    /**
+     * Create the Zernike polynomials of index first to last-1 (the piston
+     * being 0) over a radius. The polynomials are those of
+     * {@link #zernikeArray(int, int, int, double, boolean, boolean)}.
+     * @param first - index of the first mode
+     * @param last - index after the last mode
+     * @param width - width of the array
+     * @param height - width of the array
+     * @param radius - radius of the pupil
+     * @param normalize - when true all polynomial a L2 normalized
+     * @param radial  - when true only radial polynomial are considered (m =0)
+     * @return array of the last-first Zernike polynomials
+     */
+    public static double[] zernikeArray(int first, int last, int width, int height, double radius, boolean normalize, boolean radial)
+    {
+        return zernikeArray(first, last, width, height, radius, normalize, radial, null);
+    }
+
+    /**
+     * Create the Zernike polynomials of index first to last-1 as
+     * {@link #zernikeArray(int, int, int, int, double, boolean, boolean)}, the
+     * modes of each azimuthal order m being computed in parallel.
+     * @param first - index of the first mode
+     * @param last - index after the last mode
+     * @param width - width of the array
+     * @param height - width of the array
+     * @param radius - radius of the pupil
+     * @param normalize - when true all polynomial a L2 normalized
+     * @param radial  - when true only radial polynomial are considered (m =0)
+     * @param executor - executor to compute the modes in parallel, null for a sequential computation
+     * @return array of the last-first Zernike polynomials
+     */
+    public static double[] zernikeArray(int first, int last, int width, int height, final double radius, final boolean normalize, boolean radial,
+            ExecutorService executor)
+    {
+        if ((first < 0) || (last < first)) {
+            throw new IllegalArgumentException("Bad range of Zernike modes");
+        }
+        final double Z[] =  new double[(last - first)*width*height];
+        final int WH = width*height;
+        if (last == first) {
+            return Z;
+        }
 
         double r[] = MathUtils.fftDist1D(width, height);
         double theta[] = MathUtils.fftAngle1D(width, height);
 
-
-        int nm[],n,m;
-        double rPowers[] ;
-
-        if(radial){
-            n = nbZernike + 1;
-        }else{
-            nm = zernumeroNoll(nbZernike + 1);
-            n = nm[0];
-            m = nm[1];
+        /* pixels of the pupil disk, with their normalized radius and angle */
+        final int[] disk = disk(r, radius);
+        final int P = disk.length;
+        final double[] rho = new double[P];
+        final double[] cos1 = new double[P];
+        final double[] sin1 = new double[P];
+        for (int p = 0; p < P; p++)
+        {
+            int l = disk[p];
+            rho[p] = r[l]/radius;
+            cos1[p] = Math.cos(theta[l]);
+            sin1[p] = Math.sin(theta[l]);
         }
 
-        rPowers = new double[(n + 1)*width*height];
-
-
-        /* Initialize rPowers */
-        for (int l = 0; l < WH; l++)
+        /* degree n and azimuthal order m of each mode, grouped by m */
+        final int[] nOf = new int[last - first];
+        final int[] mOf = new int[last - first];
+        int mMax = 0;
+        for (int nz = first; nz < last; nz++)
         {
-            if(r[l] < radius)
-            {
-                rPowers[l] = 1; // rPowers_0 = r^0 = 1
-                Z[l] = 1; // the piston : Z_0 = 1;
-                rPowers[l + WH] = r[l]/radius; // rPowers_1 = r/radius
+            if(radial){ // only radial polynomial (m=0)
+                nOf[nz - first] = nz;
+                mOf[nz - first] = 0;
+            }else{
+                int[] nm = zernumeroNoll(nz + 1);
+                nOf[nz - first] = nm[0];
+                mOf[nz - first] = nm[1];
             }
+            mMax = Math.max(mMax, mOf[nz - first]);
         }
 
-        if( normalize)
+        final List<Runnable> tasks = new ArrayList<>();
+        for (int m = 0; m <= mMax; m++)
         {
-            double NormZ = 1/Math.sqrt(MathUtils.sum(MathUtils.abs2(Z, 0,  WH - 1, 0)));
-            for (int l = 0; l < WH; l++) // PUPIL
+            final List<Integer> chain = new ArrayList<>();
+            for (int nz = first; nz < last; nz++)
             {
-                Z[l] = Z[l]*NormZ;
+                /* the "radial" modes of odd degree are not true Zernike
+                 * polynomials and are computed from their coefficients */
+                if ((mOf[nz - first] == m) && MathUtils.even(nOf[nz - first] - m))
+                {
+                    chain.add(nz);
+                }
+                else if ((m == 0) && (mOf[nz - first] == 0) && !MathUtils.even(nOf[nz - first]))
+                {
+                    final int nz1 = nz;
+                    tasks.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            oddRadialMode(Z, (nz1 - first)*WH, nOf[nz1 - first], disk, rho, normalize);
+                        }
+                    });
+                }
+            }
+            if (!chain.isEmpty())
+            {
+                final int m1 = m;
+                final int first1 = first;
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        radialChain(Z, WH, first1, m1, chain, nOf, disk, rho, cos1, sin1, normalize);
+                    }
+                });
             }
         }
 
+        /* the chains have very different lengths, one task each */
+        ParallelRange.forRange(executor, 0, tasks.size(), 1, new ParallelRange.Loop() {
+            @Override
+            public void run(int start, int end) {
+                for (int t = start; t < end; t++) {
+                    tasks.get(t).run();
+                }
+            }
+        });
+        return Z;
+    }
 
-
-        if(radial)  { // Compute only radial polynomial (m=0)
-
-            for (int k = 2; k < nbZernike + 1; k++)
+    /**
+     * Compute the modes of azimuthal order m listed in chain (by increasing
+     * degree) on the pupil disk.
+     * <p>
+     * The radial polynomials are computed by the Kintner recurrence on n:
+     * <p>
+     * K1 R_n^m = (K2 r² + K3) R_{n-2}^m + K4 R_{n-4}^m
+     * <p>
+     * with K1 = (n+m)(n-m)(n-2)/2, K2 = 2n(n-1)(n-2),
+     * K3 = -m²(n-1) - n(n-1)(n-2), K4 = -n(n+m-2)(n-m-2)/2,
+     * R_m^m = r^m and R_{m+2}^m = ((m+2)r² - (m+1))r^m, and cos(mθ) and sin(mθ)
+     * by the Chebyshev recurrence.
+     */
+    private static void radialChain(double[] Z, int WH, int first, int m, List<Integer> chain, int[] nOf,
+            int[] disk, double[] rho, double[] cos1, double[] sin1, boolean normalize)
+    {
+        final int P = disk.length;
+        double[] cm = null;
+        double[] sm = null;
+        if (m > 0)
+        {
+            /* cos(kθ) = 2 cos(θ) cos((k-1)θ) - cos((k-2)θ), idem for sin */
+            cm = new double[P];
+            sm = new double[P];
+            for (int p = 0; p < P; p++)
             {
-                for (int l = 0; l < WH; l++)
+                double c0 = 1, c = cos1[p];
+                double s0 = 0, s = sin1[p];
+                for (int k = 2; k <= m; k++)
                 {
-                    rPowers[l + k*WH] = rPowers[l + (k - 1)*WH]*rPowers[l + WH]; // rPowers(X) = rPowers(X-1)*rPowers(1)
+                    double c2 = 2*cos1[p]*c - c0;
+                    double s2 = 2*cos1[p]*s - s0;
+                    c0 = c;
+                    c = c2;
+                    s0 = s;
+                    s = s2;
                 }
+                cm[p] = c;
+                sm[p] = s;
             }
-            for (int nz = 1; nz < nbZernike; nz++)
+        }
+        double[] R = new double[P]; // R_n^m
+        double[] R2 = new double[P]; // R_{n-2}^m
+        double[] R4 = new double[P]; // R_{n-4}^m
+        int nMax = nOf[chain.get(chain.size() - 1) - first];
+        int next = 0;
+        for (int n = m; n <= nMax; n += 2)
+        {
+            double[] tmp = R4;
+            R4 = R2;
+            R2 = R;
+            R = tmp;
+            if (n == m)
             {
-                double[] R_mn = coeffRadialZCumSumLog(nz, 0);
-                double N;
-                double zr = 0;
-                /* J != 1 & m = 0 */
-                for (int l = 0; l < WH; l++)
+                for (int p = 0; p < P; p++)
                 {
-                    zr = 0;
-                    N = Math.sqrt(nz + 1);
-                    for( int s = (nz )/2; s >= 0; s-- )
+                    double rm = 1;
+                    for (int k = 0; k < m; k++)
                     {
-                        zr = zr +  R_mn[s]*rPowers[l + (nz - 2*s)*WH];
+                        rm *= rho[p];
                     }
-                    Z[l + nz*WH] = N*zr;
+                    R[p] = rm;
                 }
-                if( normalize)
+            }
+            else if (n == m + 2)
+            {
+                for (int p = 0; p < P; p++)
                 {
-                    double NormZ = 1/Math.sqrt(MathUtils.sum(MathUtils.abs2(Z, nz*WH, nz*WH + WH - 1, 0)));
-                    for (int l = 0; l < WH; l++) // PUPIL
-                    {
-                        Z[l + nz*WH] *= NormZ;
-                    }
+                    R[p] = ((m + 2)*rho[p]*rho[p] - (m + 1))*R2[p];
                 }
             }
-        }else{
-
-            for (int k = 2; k < n + 1; k++)
+            else
             {
-                for (int l = 0; l < WH; l++)
+                double K1 = (n + m)*(n - m)*(n - 2)/2.;
+                double K2 = 2.*n*(n - 1)*(n - 2);
+                double K3 = -m*m*(n - 1.) - n*(n - 1.)*(n - 2.);
+                double K4 = -n*(n + m - 2.)*(n - m - 2.)/2.;
+                for (int p = 0; p < P; p++)
                 {
-                    rPowers[l + k*WH] = rPowers[l + (k - 1)*WH]*rPowers[l + WH]; // rPowers(X) = rPowers(X-1)*rPowers(1)
+                    R[p] = ((K2*rho[p]*rho[p] + K3)*R2[p] + K4*R4[p])/K1;
                 }
             }
-            for (int nz = 1; nz < nbZernike; nz++)
+            while ((next < chain.size()) && (nOf[chain.get(next) - first] == n))
             {
-                nm = zernumeroNoll(nz + 1);
-                n = nm[0];
-                m = nm[1];
-                double[] R_mn = coeffRadialZCumSumLog(n, m);
-                double N;
-                double zr = 0;
-                /* J != 1 & m = 0 */
-                if(m == 0)
+                int nz = chain.get(next++);
+                int off = (nz - first)*WH;
+                if (m == 0)
                 {
-                    for (int l = 0; l < WH; l++)
+                    /* J != 1 & m = 0 */
+                    double N = Math.sqrt(n + 1);
+                    for (int p = 0; p < P; p++)
                     {
-                        zr = 0;
-                        N = Math.sqrt(n + 1);
-                        for( int s = (n - m)/2; s >= 0; s-- )
-                        {
-                            zr = zr +  R_mn[s]*rPowers[l + (n - 2*s)*WH];
-                        }
-                        Z[l + nz*WH] = N*zr;
+                        Z[disk[p] + off] = N*R[p];
                     }
-                    if( normalize)
+                }
+                else
+                {
+                    /* J > 0 & J even & m != 0 --> azimuthal part is a cosine
+                     * J > 0 & J odd & m != 0 --> azimuthal part is a sine */
+                    double N = Math.sqrt( 2*(n + 1) );
+                    double[] angular = (MathUtils.even(nz + 1) ? cm : sm);
+                    for (int p = 0; p < P; p++)
                     {
-                        double NormZ = 1/Math.sqrt(MathUtils.sum(MathUtils.abs2(Z, nz*WH, nz*WH + WH - 1, 0)));
-                        for (int l = 0; l < WH; l++) // PUPIL
-                        {
-                            Z[l + nz*WH] *= NormZ;
-                        }
+                        Z[disk[p] + off] = N*R[p]*angular[p];
                     }
                 }
-                else
+                if( normalize)
+                {
+                    normalizeMode(Z, off, disk);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the "radial" mode of odd degree n (m = 0) from the
+     * coefficients of {@link #coeffRadialZCumSumLog(int, int)} by the Horner
+     * scheme in r².
+     */
+    private static void oddRadialMode(double[] Z, int off, int n, int[] disk, double[] rho, boolean normalize)
+    {
+        double[] R_mn = coeffRadialZCumSumLog(n, 0);
+        int S = R_mn.length - 1; // the powers are r^(n-2s) = r^(n-2S) (r²)^(S-s)
+        double N = Math.sqrt(n + 1);
+        for (int p = 0; p < disk.length; p++)
+        {
+            double r2 = rho[p]*rho[p];
+            double zr = R_mn[0];
+            for (int s = 1; s <= S; s++)
+            {
+                zr = zr*r2 + R_mn[s];
+            }
+            Z[disk[p] + off] = N*zr*Math.pow(rho[p], n - 2*S);
+        }
+        if( normalize)
+        {
+            normalizeMode(Z, off, disk);
+        }
+    }
+
+    /* indices of the pixels of the pupil disk, where the modes are not null */
+    private static int[] disk(double[] r, double radius)
+    {
+        int P = 0;
+        for (int l = 0; l < r.length; l++)
+        {
+            if(r[l] < radius)
+            {
+                P++;
+            }
+        }
+        int[] disk = new int[P];
+        for (int l = 0, p = 0; l < r.length; l++)
+        {
+            if(r[l] < radius)
+            {
+                disk[p++] = l;
+            }
+        }
+        return disk;
+    }
+
+    /* L2 normalization of a mode that is null outside the disk */
+    private static void normalizeMode(double[] Z, int off, int[] disk)
+    {
+        double norm = 0;
+        for (int p = 0; p < disk.length; p++)
+        {
+            norm += Z[disk[p] + off]*Z[disk[p] + off];
+        }
+        norm = 1/Math.sqrt(norm);
+        for (int p = 0; p < disk.length; p++)
+        {
+            Z[disk[p] + off] *= norm;
+        }
+    }
+
+    /**
+     * Compute an orthonormal basis of the first nbZernike Zernike polynomials.
+     * @param nbZernike - number of zernike modes
+     * @param width - width of the array
+     * @param height - width of the array
+     * @param radius - radius of the pupil
+     * @param normalize - when true all polynomial a L2 normalized before orthonormalization
+     * @param radial  - when true only radial polynomial are considered (m =0)
+     * @return the orthonormal basis
+     */
+    public static double[] orthonormalBasis(int nbZernike, int width, int height, double radius, boolean normalize,boolean radial)
+    {
+        return extendBasis(null, 0, nbZernike, width, height, radius, normalize, radial, null);
+    }
+
+    /**
+     * Extend an orthonormal basis of the first nOld Zernike polynomials to the
+     * first nNew ones. Only the new polynomials are computed; they are
+     * orthonormalized against the existing modes and one another so that the
+     * result is the same as {@link #orthonormalBasis(int, int, int, double, boolean, boolean)}.
+     * @param basis - orthonormal basis of the first nOld modes (may be longer, null if nOld = 0), not modified
+     * @param nOld - number of modes of basis
+     * @param nNew - number of modes of the new basis
+     * @param width - width of the array
+     * @param height - width of the array
+     * @param radius - radius of the pupil
+     * @param normalize - when true all polynomial a L2 normalized before orthonormalization
+     * @param radial  - when true only radial polynomial are considered (m =0)
+     * @return the orthonormal basis of the first nNew modes
+     */
+    public static double[] extendBasis(double[] basis, int nOld, int nNew, int width, int height, double radius, boolean normalize,boolean radial)
+    {
+        return extendBasis(basis, nOld, nNew, width, height, radius, normalize, radial, null);
+    }
+
+    /**
+     * Extend an orthonormal basis as
+     * {@link #extendBasis(double[], int, int, int, int, double, boolean, boolean)},
+     * the new polynomials being computed in parallel.
+     * @param basis - orthonormal basis of the first nOld modes (may be longer, null if nOld = 0), not modified
+     * @param nOld - number of modes of basis
+     * @param nNew - number of modes of the new basis
+     * @param width - width of the array
+     * @param height - width of the array
+     * @param radius - radius of the pupil
+     * @param normalize - when true all polynomial a L2 normalized before orthonormalization
+     * @param radial  - when true only radial polynomial are considered (m =0)
+     * @param executor - executor to compute the polynomials in parallel, null for a sequential computation
+     * @return the orthonormal basis of the first nNew modes
+     */
+    public static double[] extendBasis(double[] basis, int nOld, int nNew, int width, int height, double radius, boolean normalize,boolean radial,
+            ExecutorService executor)
+    {
+        int WH = width*height;
+        if (nNew <= nOld) {
+            return (basis == null ? new double[0] : Arrays.copyOf(basis, nNew*WH));
+        }
+        double[] Z = new double[nNew*WH];
+        if (nOld > 0) {
+            System.arraycopy(basis, 0, Z, 0, nOld*WH);
+        }
+        double[] added = zernikeArray(nOld, nNew, width, height, radius, normalize, radial, executor);
+        System.arraycopy(added, 0, Z, nOld*WH, added.length);
+        /* all the modes are null outside the pupil disk */
+        orthonormalize(Z, WH, disk(MathUtils.fftDist1D(width, height), radius), nOld, nNew);
+        return Z;
+    }
+
+    /**
+     * Orthonormalize in place the modes first to last-1 of Z against the
+     * modes 0 to first-1, supposed orthonormal, and one another using the
+     * modified Gram-Schmidt process.
+     * @param Z - modes of size WH, one after the other
+     * @param WH - size of a mode
+     * @param first - index of the first mode to orthonormalize
+     * @param last - index after the last mode to orthonormalize
+     */
+    public static void orthonormalize(double[] Z, int WH, int first, int last)
+    {
+        int[] support = new int[WH];
+        for (int l = 0; l < WH; l++)
+        {
+            support[l] = l;
+        }
+        orthonormalize(Z, WH, support, first, last);
+    }
+
+    /**
+     * Orthonormalize in place the modes first to last-1 of Z as
+     * {@link #orthonormalize(double[], int, int, int)} for modes that are
+     * null outside support. The inner products are only computed on the
+     * support; as the other terms are null, the result is the same.
+     * <p>
+     * When the projections cancel most of a mode (its norm drops below
+     * 1/√2 of its initial norm), the rounding errors leave it far from
+     * orthogonal to the previous modes and the projections are done a
+     * second time ("twice is enough", Kahan and Parlett). It is the case of
+     * the radial bases, whose modes span the powers of r² and are thus
+     * nearly dependent above about 10 modes.
+     * @param Z - modes of size WH, one after the other
+     * @param WH - size of a mode
+     * @param support - indices of the pixels where the modes may not be null, in increasing order
+     * @param first - index of the first mode to orthonormalize
+     * @param last - index after the last mode to orthonormalize
+     */
+    public static void orthonormalize(double[] Z, int WH, int[] support, int first, int last)
+    {
+        final int P = support.length;
+        for (int k = first; k < last; k++)
+        {
+            int offK = k*WH;
+            double norm = squaredNorm(Z, offK, support);
+            for (int pass = 0; pass < 2; pass++)
+            {
+                for (int j = 0; j < k; j++)
                 {
-                    /* J > 0 & J even & m != 0 --> azimuthal part is a cosine */
-                    if(MathUtils.even(nz + 1))
+                    int offJ = j*WH;
+                    double dot = 0;
+                    for (int p = 0; p < P; p++)
                     {
-                        for (int l = 0; l < WH; l++)
-                        {
-                            N = Math.sqrt( 2*(n + 1) );
-                            zr = 0;
-                            for( int s = (n - m)/2; s >= 0; s--)
-                            {
-                                zr = zr +  R_mn[s]*rPowers[l + (n - 2*s)*WH];
-                            }
-                            Z[l + nz*WH] = N*zr*Math.cos(m*theta[l]);
-                        }
-                        if( normalize)
-                        {
-                            double NormZ = 1/Math.sqrt(MathUtils.sum(MathUtils.abs2(Z, nz*WH, nz*WH + WH - 1, 0)));
-                            for (int l = 0; l < WH; l++)
-                            {
-                                Z[l + nz*WH] = Z[l + nz*WH]*NormZ;
-                            }
-                        }
+                        dot += Z[support[p] + offK]*Z[support[p] + offJ];
                     }
-                    else
+                    for (int p = 0; p < P; p++)
                     {
-                        /* J > 0 & J odd & m != 0 --> azimuthal part is a sine */
-                        for (int l = 0; l < WH; l++)
-                        {
-                            N = Math.sqrt( 2*(n + 1) );
-                            zr = 0;
-                            for( int s = (n - m)/2; s >= 0; s-- )
-                            {
-                                zr = zr + R_mn[s]*rPowers[l + (n - 2*s)*WH];
-                            }
-                            Z[l + nz*WH] = N*zr*Math.sin(m*theta[l]);
-                        }
-                        if( normalize)
-                        {
-                            double NormZ = 1/Math.sqrt(MathUtils.sum(MathUtils.abs2(Z, nz*WH, nz*WH + WH - 1, 0)));
-                            for (int l = 0; l < WH; l++)
-                            {
-                                Z[l + nz*WH] = Z[l + nz*WH]*NormZ;
-                            }
-                        }
+                        Z[support[p] + offK] -= dot*Z[support[p] + offJ];
                     }
                 }
+                double previous = norm;
+                norm = squaredNorm(Z, offK, support);
+                if (norm >= 0.5*previous)
+                {
+                    break;
+                }
+            }
+            norm = 1/Math.sqrt(norm);
+            for (int p = 0; p < P; p++)
+            {
+                Z[support[p] + offK] *= norm;
             }
         }
-        return Z;
+    }
+
+    /**
+     * @return the squared norm of the mode starting at off in Z on the support
+     */
+    private static double squaredNorm(double[] Z, int off, int[] support)
+    {
+        double norm = 0;
+        for (int p = 0; p < support.length; p++)
+        {
+            norm += Z[support[p] + off]*Z[support[p] + off];
+        }
+        return norm;
     }
 
 
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microUtils;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Process-wide cache of orthonormalized Zernike bases.
+ * <p>
+ * Every model with the same pupil geometry uses the same basis, so bases
+ * are shared instead of being computed by each model. Entries are kept in
+ * least recently used order and evicted when their total size exceeds a
+ * bound. They are also held by soft references so that the garbage
+ * collector can reclaim them under memory pressure.
+ * <p>
+ * As the Gram-Schmidt orthonormalization is sequential, the first modes of
+ * a basis do not depend on the number of modes. A request for fewer modes
+ * than a cached basis of the same geometry is thus served from it without
+ * any copy, and a request for more modes only computes the missing ones.
+ * <p>
+ * The arrays returned are shared and must not be modified. They may hold
+ * more modes than requested: the modes are stored one after the other, the
+ * requested ones first.
+ *
+ * @author Ferréol
+ */
+public final class ZernikeCache {
+
+    private static final class Key {
+        final int width;
+        final int height;
+        final double radius;
+        final boolean normalize;
+        final boolean radial;
+
+        Key(int width, int height, double radius, boolean normalize, boolean radial) {
+            this.width = width;
+            this.height = height;
+            this.radius = radius;
+            this.normalize = normalize;
+            this.radial = radial;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) obj;
+            return (width == k.width) && (height == k.height)
+                    && (Double.compare(radius, k.radius) == 0)
+                    && (normalize == k.normalize) && (radial == k.radial);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = width;
+            h = 31*h + height;
+            h = 31*h + Double.hashCode(radius);
+            h = 31*h + (normalize ? 1 : 0);
+            h = 31*h + (radial ? 1 : 0);
+            return h;
+        }
+    }
+
+    private static final class Entry {
+        final int nbZernike;
+        final long size; // in bytes
+        final SoftReference<double[]> basis;
+
+        Entry(int nbZernike, double[] basis) {
+            this.nbZernike = nbZernike;
+            this.size = 8L*basis.length;
+            this.basis = new SoftReference<>(basis);
+        }
+    }
+
+    /* one entry (the basis with the most modes) per geometry, in access order */
+    private static final LinkedHashMap<Key, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long maximumSize = 256L << 20;
+    private static long size = 0;
+
+    private ZernikeCache() {
+    }
+
+    /**
+     * Get the orthonormalized Zernike basis, computing it if it is not cached.
+     * The arguments are those of {@link Zernike#zernikeArray(int, int, int, double, boolean, boolean)}.
+     * @param nbZernike number of modes
+     * @param width
+     * @param height
+     * @param radius
+     * @param normalize
+     * @param radial
+     * @return the basis, shared: do not modify it. Its first nbZernike modes
+     * of width x height are the requested ones, the array may hold more
+     * (see {@link #getNumberOfModes(double[], int, int)}).
+     */
+    public static double[] getBasis(int nbZernike, int width, int height, double radius, boolean normalize, boolean radial) {
+        return getBasis(nbZernike, width, height, radius, normalize, radial, null);
+    }
+
+    /**
+     * Get the orthonormalized Zernike basis as
+     * {@link #getBasis(int, int, int, double, boolean, boolean)}, the missing
+     * modes being computed in parallel.
+     * @param nbZernike number of modes
+     * @param width
+     * @param height
+     * @param radius
+     * @param normalize
+     * @param radial
+     * @param executor executor to compute the modes in parallel, null for a sequential computation
+     * @return the basis, shared: do not modify it
+     */
+    public static double[] getBasis(int nbZernike, int width, int height, double radius, boolean normalize, boolean radial,
+            ExecutorService executor) {
+        Key key = new Key(width, height, radius, normalize, radial);
+        double[] previous = null;
+        int nPrevious = 0;
+        synchronized (ZernikeCache.class) {
+            Entry entry = cache.get(key);
+            if (entry != null) {
+                double[] basis = entry.basis.get();
+                if (basis == null) {
+                    remove(key);
+                } else if (entry.nbZernike >= nbZernike) {
+                    return basis;
+                } else {
+                    previous = basis;
+                    nPrevious = entry.nbZernike;
+                }
+            }
+        }
+        /* only the modes that are not cached are computed */
+        double[] basis = Zernike.extendBasis(previous, nPrevious, nbZernike, width, height, radius, normalize, radial, executor);
+        synchronized (ZernikeCache.class) {
+            Entry entry = cache.get(key);
+            if ((entry == null) || (entry.basis.get() == null) || (entry.nbZernike < nbZernike)) {
+                remove(key);
+                entry = new Entry(nbZernike, basis);
+                cache.put(key, entry);
+                size += entry.size;
+                trim();
+            }
+        }
+        return basis;
+    }
+
+    /**
+     * Get the number of modes held by a basis returned by
+     * {@link #getBasis(int, int, int, double, boolean, boolean)}.
+     * @param basis
+     * @param width
+     * @param height
+     * @return the number of modes of the basis
+     */
+    public static int getNumberOfModes(double[] basis, int width, int height) {
+        return basis.length/(width*height);
+    }
+
+    /**
+     * Set the maximum total size of the cached bases
+     * @param bytes size in bytes (0 disables the cache)
+     */
+    public static synchronized void setMaximumSize(long bytes) {
+        maximumSize = Math.max(0, bytes);
+        trim();
+    }
+
+    /**
+     * @return the maximum total size of the cached bases in bytes
+     */
+    public static synchronized long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Empty the cache
+     */
+    public static synchronized void clear() {
+        cache.clear();
+        size = 0;
+    }
+
+    private static void remove(Key key) {
+        Entry entry = cache.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+        }
+    }
+
+    /* evict the cleared entries then the least recently used ones */
+    private static void trim() {
+        Iterator<Map.Entry<Key, Entry>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.basis.get() == null) {
+                size -= entry.size;
+                it.remove();
+            }
+        }
+        it = cache.entrySet().iterator();
+        while ((size > maximumSize) && it.hasNext()) {
+            size -= it.next().getValue().size;
+            it.remove();
+        }
+    }
+}
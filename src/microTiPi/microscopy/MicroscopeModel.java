@@ -24,6 +24,11 @@
 
 package microTiPi.microscopy;
 
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import mitiv.array.Array3D;
 import mitiv.base.Shape;
 import mitiv.linalg.shaped.DoubleShapedVector;
@@ -37,7 +42,7 @@ import mitiv.psf.PsfModel;
  * @author Ferréol
  *
  */
-public abstract class MicroscopeModel extends PsfModel
+public abstract class MicroscopeModel extends PsfModel implements AutoCloseable
 {
     protected int PState=0;   // flag to prevent useless recomputation of the PSF
     protected final static boolean NORMALIZED = true;
@@ -53,6 +58,12 @@ public abstract class MicroscopeModel extends PsfModel
     protected DoubleShapedVectorSpace[] parameterSpace;
     protected DoubleShapedVector[] parameterCoefs;
 
+    protected int parallelism = Runtime.getRuntime().availableProcessors(); // maximum number of threads used by the model
+    private ExecutorService executor = null; // long-lived pool shared by all the parallel kernels
+    /* held for reading by the computations, for writing to replace or shut down the executor */
+    private final ReentrantReadWriteLock executorLock = new ReentrantReadWriteLock();
+    private boolean ownExecutor = false; // true when the executor has been created by the model
+
     /** Initialize the  PSF model containing parameters
      *  @param psfShape shape of the PSF array
      *  @param dxy lateral pixel size
@@ -79,6 +90,138 @@ public abstract class MicroscopeModel extends PsfModel
 
 
 
+    /**
+     * Get the executor service used by the parallel kernels of the model.
+     * <p>
+     * If none has been provided with {@link #setExecutorService(ExecutorService)},
+     * a {@link ForkJoinPool} with {@link #getParallelism()} threads is created on
+     * first call and kept until {@link #close()}.
+     * @return the executor service
+     */
+    public synchronized ExecutorService getExecutorService() {
+        if (executor == null) {
+            executor = new ForkJoinPool(parallelism);
+            ownExecutor = true;
+        }
+        return executor;
+    }
+
+    /**
+     * Set the executor service used by the parallel kernels of the model.
+     * <p>
+     * This allows to share a single pool between several models or with the
+     * object deconvolver. The model never shuts down an executor it has not created.
+     * @param executor the executor service, if null the model will create its own
+     */
+    public void setExecutorService(ExecutorService executor) {
+        executorLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                releaseExecutor();
+                this.executor = executor;
+            }
+        } finally {
+            executorLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the maximum number of threads used by the model
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Get the number of threads available to the parallel kernels: the
+     * parallelism of the executor if it is a {@link ForkJoinPool}, including
+     * an injected one, {@link #getParallelism()} otherwise.
+     * @return the number of threads of the executor
+     */
+    protected synchronized int getExecutorParallelism() {
+        if (executor instanceof ForkJoinPool) {
+            return ((ForkJoinPool) executor).getParallelism();
+        }
+        return parallelism;
+    }
+
+    /**
+     * Set the maximum number of threads used by the model. It only applies
+     * to the executor created by the model, not to an injected one.
+     * @param parallelism number of threads (at least 1)
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism should be at least 1");
+        }
+        executorLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (parallelism != this.parallelism) {
+                    this.parallelism = parallelism;
+                    if (ownExecutor) {
+                        releaseExecutor();
+                    }
+                }
+            }
+        } finally {
+            executorLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Mark the beginning of a computation using the executor. Until the
+     * matching {@link #unlockExecutor()}, the executor can not be replaced
+     * or shut down by another thread.
+     */
+    protected void lockExecutor() {
+        executorLock.readLock().lock();
+    }
+
+    /**
+     * Mark the end of a computation started by {@link #lockExecutor()}.
+     */
+    protected void unlockExecutor() {
+        executorLock.readLock().unlock();
+    }
+
+    /**
+     * Release the memory of the model and shut down the executor if it has
+     * been created by the model, once the running computations are over.
+     * The model remains usable, a new executor is created if needed.
+     */
+    @Override
+    public void close() {
+        executorLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                releaseExecutor();
+            }
+            freeMem();
+            releaseBuffers();
+        } finally {
+            executorLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Release the work buffers kept by the threads. It is called by
+     * {@link #close()} when no computation is running.
+     */
+    protected void releaseBuffers() {
+    }
+
+    /**
+     * Shut down the executor if it has been created by the model.
+     */
+    private void releaseExecutor() {
+        if (ownExecutor && (executor != null)) {
+            executor.shutdown();
+        }
+        executor = null;
+        ownExecutor = false;
+    }
+
     /**
      * Apply the Jacobian to the gradient on the PSF to get the
      *  derivative with respect to the PSF parameters
@@ -89,6 +232,37 @@ public abstract class MicroscopeModel extends PsfModel
      */
     abstract public DoubleShapedVector apply_Jacobian(ShapedVector grad, ShapedVectorSpace xspace);
 
+    /**
+     * Apply the Jacobian to the gradient on the PSF for several parameter
+     * spaces at once. Models able to share the computations between the
+     * parameter groups should override this method.
+     *
+     * @param grad derivative with respect to the PSF pixels
+     * @param xspaces PSF parameter spaces
+     * @return derivatives with respect to the parameters of each space
+     */
+    public DoubleShapedVector[] apply_Jacobian(ShapedVector grad, ShapedVectorSpace[] xspaces) {
+        DoubleShapedVector[] jac = new DoubleShapedVector[xspaces.length];
+        for (int i = 0; i < xspaces.length; i++) {
+            jac[i] = apply_Jacobian(grad, xspaces[i]);
+        }
+        return jac;
+    }
+
+
+    /**
+     * Get the typical magnitude of the parameters of a group. A joint fit
+     * divides each parameter by its scale so that groups of very different
+     * magnitudes are optimized in comparable units.
+     *
+     * @param flag index of the parameter group
+     * @return the scales of the parameters of the group (ones by default)
+     */
+    public double[] getParameterScales(int flag) {
+        double[] scales = new double[parameterSpace[flag].getNumber()];
+        Arrays.fill(scales, 1.0);
+        return scales;
+    }
 
     /**
      * @return return an array with the flags of each parameters
@@ -102,6 +276,27 @@ public abstract class MicroscopeModel extends PsfModel
      */
     protected abstract void computePsf();
 
+    /**
+     * Change the precision of the model, the PSF being then outdated.
+     * @param single single precision flag
+     */
+    @Override
+    public void setSingle(boolean single) {
+        if (single != isSingle()) {
+            super.setSingle(single);
+            invalidate();
+        }
+    }
+
+    /**
+     * Mark the PSF as outdated after a parameter change. Unlike
+     * {@link #freeMem()}, the memory allocated for the PSF is kept to be
+     * reused by the next computation.
+     */
+    public void invalidate() {
+        PState = 0;
+    }
+
 
 
 }
\ No newline at end of file
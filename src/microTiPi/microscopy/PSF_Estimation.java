@@ -66,6 +66,9 @@ public class PSF_Estimation  {
     private MicroscopeModel pupil = null;
     private ReverseCommunicationOptimizer minimizer = null;
     private  ShapedArray weights = null;
+    /* Cost of the data, rebuilt only after setObj, setData or setWeight */
+    private WeightedConvolutionCost fdata = null;
+    private ShapedVectorSpace objSpace = null;
     private boolean single;
 
     private boolean run = true;
@@ -104,6 +107,22 @@ public class PSF_Estimation  {
      * @param flag
      */
     public void fitPSF(  int flag) {
+        fitPSF(new int[] {flag});
+    }
+
+    /**
+     * Perform a joint PSF estimation on all the parameters indexed by flags.
+     * The coefficients of the different parameter groups are concatenated in
+     * a single vector that is optimized by VMLMB using the fused Jacobian of
+     * the model. When several groups are estimated, each parameter is divided
+     * by its scale given by {@link MicroscopeModel#getParameterScales(int)}
+     * (e.g. n_i / \lambda is optimized relative to its initial value) so that
+     * the groups have comparable magnitudes. The fit is stopped after the
+     * maximum number of iterations set by {@link #setMaximumIterations(int)},
+     * whatever the number of groups.
+     * @param flags
+     */
+    public void fitPSF(  int[] flags) {
         run =true;
         // FIXME set a best X
         DoubleShapedVector x = null;
@@ -113,41 +132,38 @@ public class PSF_Estimation  {
             fatal("Input data not specified.");
         }
 
-
-        x = pupil.parameterCoefs[flag];
-
-
-
-        Shape dataShape = data.getShape();
-        int rank = data.getRank();
-        ShapedVectorSpace dataSpace, objSpace;
-
-        DoubleShapedVector best_x = x.clone();
-        // Check the PSF.
-        if (obj == null) {
-            fatal("Object not specified.");
+        /* Parameter groups to estimate (groups without parameters are skipped) */
+        int nGroups = 0;
+        int nParam = 0;
+        for (int flag : flags) {
+            if (pupil.parameterSpace[flag] != null) {
+                nGroups++;
+                nParam += pupil.parameterSpace[flag].getNumber();
+            }
         }
-        if (obj.getRank() != rank) {
-            fatal("Obj must have same rank as data.");
+        if (nGroups == 0) {
+            fatal("No parameter to estimate.");
         }
-
-        if(single){
-            dataSpace = new FloatShapedVectorSpace(dataShape);
-            objSpace = new FloatShapedVectorSpace(dataShape);
-        }else{
-            dataSpace = new DoubleShapedVectorSpace(dataShape);
-            objSpace = new DoubleShapedVectorSpace(dataShape);
+        DoubleShapedVectorSpace variableSpace = new DoubleShapedVectorSpace(nParam);
+        DoubleShapedVectorSpace[] groupSpaces = new DoubleShapedVectorSpace[nGroups];
+        double[] scales = new double[nParam];
+        x = variableSpace.create();
+        for (int i = 0, g = 0, k = 0; i < flags.length; i++) {
+            if (pupil.parameterSpace[flags[i]] != null) {
+                groupSpaces[g++] = pupil.parameterSpace[flags[i]];
+                DoubleShapedVector coefs = pupil.parameterCoefs[flags[i]];
+                double[] groupScales = pupil.getParameterScales(flags[i]);
+                for (int j = 0; j < coefs.getNumber(); j++) {
+                    /* a single group is optimized in its own units */
+                    scales[k] = (nGroups > 1 && groupScales[j] > 0 ? groupScales[j] : 1.0);
+                    x.set(k, coefs.get(j)/scales[k]);
+                    k++;
+                }
+            }
         }
 
-        // Initialize a vector space and populate it with workspace vectors.
-
-        DoubleShapedVectorSpace variableSpace = x.getSpace();
-        int[] off ={0,0, 0};
-        // Build convolution operator.
-        WeightedConvolutionCost fdata = WeightedConvolutionCost.build(objSpace, dataSpace);
-        fdata.setPSF(obj,off);
-        fdata.setData(data);
-        fdata.setWeights(weights,true);
+        DoubleShapedVector best_x = x.clone();
+        WeightedConvolutionCost fdata = getDataCost();
 
         if (debug) {
             System.out.println("Vector space initialization complete.");
@@ -199,7 +215,7 @@ public class PSF_Estimation  {
         OptimTask task = minimizer.start();
         while (run) {
             if (task == OptimTask.COMPUTE_FG) {
-                pupil.setParam(x);
+                setParam(x, scales, groupSpaces);
 
                 pupil.computePsf();
 
@@ -214,7 +230,13 @@ public class PSF_Estimation  {
                         System.out.println("Cost: " + best_cost);
                     }
                 }
-                gX =  pupil.apply_Jacobian(gcost,x.getSpace());
+                DoubleShapedVector[] gGroups = pupil.apply_Jacobian(gcost, groupSpaces);
+                for (int g = 0, k = 0; g < nGroups; g++) {
+                    for (int i = 0; i < gGroups[g].getNumber(); i++) {
+                        gX.set(k, gGroups[g].get(i)*scales[k]);
+                        k++;
+                    }
+                }
 
             } else if (task == OptimTask.NEW_X || task == OptimTask.FINAL_X) {
                 boolean stop = (task == OptimTask.FINAL_X);
@@ -251,10 +273,68 @@ public class PSF_Estimation  {
         }
 
 
-        pupil.setParam(best_x);
+        setParam(best_x, scales, groupSpaces);
 
     }
 
+    /**
+     * Get the cost of the data, building it if the object, the data or the
+     * weights have been set since the last call. The Fourier transform of the
+     * object is thus shared by all the fits done with the same object.
+     * @return the cost of the data
+     */
+    private WeightedConvolutionCost getDataCost() {
+        if (fdata != null) {
+            return fdata;
+        }
+        Shape dataShape = data.getShape();
+        int rank = data.getRank();
+        ShapedVectorSpace dataSpace;
+
+        // Check the PSF.
+        if (obj == null) {
+            fatal("Object not specified.");
+        }
+        if (obj.getRank() != rank) {
+            fatal("Obj must have same rank as data.");
+        }
+
+        if(single){
+            dataSpace = new FloatShapedVectorSpace(dataShape);
+            objSpace = new FloatShapedVectorSpace(dataShape);
+        }else{
+            dataSpace = new DoubleShapedVectorSpace(dataShape);
+            objSpace = new DoubleShapedVectorSpace(dataShape);
+        }
+
+        int[] off ={0,0, 0};
+        // Build convolution operator.
+        fdata = WeightedConvolutionCost.build(objSpace, dataSpace);
+        fdata.setPSF(obj,off);
+        fdata.setData(data);
+        fdata.setWeights(weights,true);
+        return fdata;
+    }
+
+    /**
+     * Split the concatenated parameters x between the parameter groups and
+     * give them to the model.
+     * @param x concatenated scaled parameters
+     * @param scales scale of each parameter
+     * @param groupSpaces parameter spaces of the groups
+     */
+    private void setParam(DoubleShapedVector x, double[] scales, DoubleShapedVectorSpace[] groupSpaces) {
+        int k = 0;
+        for (DoubleShapedVectorSpace space : groupSpaces) {
+            DoubleShapedVector param = space.create();
+            for (int i = 0; i < param.getNumber(); i++) {
+                param.set(i, x.get(k)*scales[k]);
+                k++;
+            }
+            pupil.setParam(param);
+        }
+    }
+
     /* Below are all methods required for a ReconstructionJob. */
 
     /** Enable debugging mode
@@ -321,6 +401,7 @@ public class PSF_Estimation  {
      */
     public void setWeight(ShapedArray wgtArray){
         this.weights = ArrayUtils.pad(wgtArray,pupil.getShape());
+        fdata = null;
     }
 
     /** Change the microscope model
@@ -349,6 +430,7 @@ public class PSF_Estimation  {
      */
     public void setData(ShapedArray shapedArray) {
         this.data = shapedArray;
+        fdata = null;
     }
 
     /**
@@ -385,7 +467,7 @@ public class PSF_Estimation  {
      */
     public void setObj(ShapedArray objArray) {
         this.obj = objArray;
-
+        fdata = null;
     }
 
     /** Return the object containing the full description of the PSF
@@ -400,5 +482,6 @@ public class PSF_Estimation  {
      */
     public void freeMem(){
         pupil.freeMem();
+        fdata = null;
     }
 }
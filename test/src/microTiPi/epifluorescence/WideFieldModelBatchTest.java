@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.epifluorescence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jtransforms.fft.DoubleFFT_2D;
+import org.junit.Test;
+
+import mitiv.array.Array3D;
+import mitiv.array.Double3D;
+import mitiv.array.Float3D;
+import mitiv.base.Shape;
+
+/**
+ * Check the PSFs computed in batch by {@link WideFieldModel} against the PSFs
+ * of models built for each set of parameters, and that the model computing
+ * them is left unchanged.
+ *
+ * @author Ferréol
+ */
+public class WideFieldModelBatchTest {
+
+    private static final double DOUBLE_TOLERANCE = 1e-12;
+    private static final double SINGLE_TOLERANCE = 1e-5;
+
+    private static final double[] DEFOCUS = {1.33/500e-9, 2e4, -1e4};
+    private static final double[] PHASE = {0.3, -0.2, 0.1, 0.05, -0.4};
+    private static final double[] MODULUS = {1.0, 0.1, -0.05};
+
+    @Test
+    public void psfsDouble() {
+        checkPsfs(false, false);
+        checkPsfs(false, true);
+    }
+
+    @Test
+    public void psfsSingle() {
+        checkPsfs(true, false);
+        checkPsfs(true, true);
+    }
+
+    /**
+     * Each PSF of the batch is the PSF of a model built with its parameters,
+     * those that are not given being the parameters of the model.
+     * @param single precision of the models
+     * @param computed true if the PSF of the model is computed before the batch
+     */
+    private static void checkPsfs(boolean single, boolean computed) {
+        double[][] defocus = {null, {1.33/500e-9, -1e4, 3e4}, {1.34/500e-9, 0, 0}};
+        double[][] phase = {{0.1, 0.2, -0.3, 0, 0.2}, null, {0, 0, 0, 0, 0}};
+        double[][] modulus = {{1.0, -0.2, 0.1}, {1.0, 0, 0}, null};
+        WideFieldModel model = buildModel(single, DEFOCUS, PHASE, MODULUS);
+        try {
+            double[] psf = (computed ? model.getPsf().toDouble().flatten() : null);
+            Array3D[] psfs = model.computePsfs(defocus, phase, modulus);
+            assertTrue(psfs.length == 3);
+            for (int i = 0; i < psfs.length; i++) {
+                WideFieldModel expected = buildModel(single,
+                        (defocus[i] == null ? DEFOCUS : defocus[i]),
+                        (phase[i] == null ? PHASE : phase[i]),
+                        (modulus[i] == null ? MODULUS : modulus[i]));
+                try {
+                    assertSamePsf(expected.getPsf(), psfs[i], "PSF " + i + " of the batch");
+                } finally {
+                    expected.close();
+                }
+            }
+            assertUnchanged(model, psf);
+        } finally {
+            model.close();
+        }
+    }
+
+    @Test
+    public void depthPsfsDouble() {
+        checkDepthPsfs(false);
+    }
+
+    @Test
+    public void depthPsfsSingle() {
+        checkDepthPsfs(true);
+    }
+
+    /**
+     * Each PSF of the depths is the PSF computed from the pupil of the model
+     * with the phase of the index mismatch added, or its modulus damped where
+     * the wave is evanescent in the sample. At depth 0 or without index
+     * mismatch, it is the PSF of the model.
+     */
+    private static void checkDepthPsfs(boolean single) {
+        double[] depths = {0, 1e-6, -2e-6, 5e-6};
+        double ns = 1.1; // the pupil has evanescent and propagating parts
+        WideFieldModel model = buildModel(single, DEFOCUS, PHASE, MODULUS);
+        WideFieldModel reference = buildModel(false, DEFOCUS, PHASE, MODULUS);
+        try {
+            double[] psf = model.getPsf().toDouble().flatten();
+            Array3D[] psfs = model.computeDepthPsfs(depths, ns);
+            assertTrue(psfs.length == depths.length);
+            assertSamePsf(model.getPsf(), psfs[0], "PSF at depth 0");
+            for (int i = 0; i < depths.length; i++) {
+                Array3D expected = Double3D.wrap(depthPsf(reference, depths[i], ns), model.getPsf().getShape());
+                double error = WideFieldModelModesTest.distance(expected.toDouble().flatten(), psfs[i].toDouble().flatten());
+                assertTrue("PSF at depth " + depths[i] + ": relative error " + error,
+                        error < (single ? SINGLE_TOLERANCE : DOUBLE_TOLERANCE));
+            }
+            Array3D[] matched = model.computeDepthPsfs(depths, model.getNi());
+            for (int i = 0; i < depths.length; i++) {
+                assertSamePsf(model.getPsf(), matched[i], "PSF at depth " + depths[i] + " without mismatch");
+            }
+            assertUnchanged(model, psf);
+        } finally {
+            model.close();
+            reference.close();
+        }
+    }
+
+    /**
+     * Compute the PSF at depth d in a sample of index ns from the full size
+     * pupil of the model.
+     */
+    private static double[] depthPsf(WideFieldModel model, double d, double ns) {
+        Shape shape = model.getPsf().getShape();
+        int nx = shape.dimension(0), ny = shape.dimension(1), nz = shape.dimension(2);
+        double dz = 150e-9;
+        double[] rho = model.getRho();
+        double[] phi = model.getPhi();
+        double[] psi = model.getPsi();
+        double lambda_ni2 = Math.pow(model.getNi()/model.getLambda(), 2);
+        double lambda_ns2 = Math.pow(ns/model.getLambda(), 2);
+        double[] h = new double[nx*ny*nz];
+        double[] A = new double[2*nx*ny];
+        DoubleFFT_2D fft = new DoubleFFT_2D(ny, nx);
+        for (int iz = 0; iz < nz; iz++) {
+            double z = (iz > nz/2 ? iz - nz : iz)*dz;
+            for (int in = 0; in < nx*ny; in++) {
+                double modulus = rho[in];
+                double phase = phi[in] + 2*Math.PI*z*psi[in];
+                double q = lambda_ns2 - lambda_ni2 + psi[in]*psi[in];
+                if (q >= 0) {
+                    phase += 2*Math.PI*d*(Math.sqrt(q) - psi[in]);
+                } else {
+                    modulus *= Math.exp(-2*Math.PI*Math.abs(d)*Math.sqrt(-q));
+                }
+                A[2*in] = modulus*Math.cos(phase);
+                A[2*in + 1] = modulus*Math.sin(phase);
+            }
+            fft.complexForward(A);
+            for (int in = 0; in < nx*ny; in++) {
+                h[in + nx*ny*iz] = (A[2*in]*A[2*in] + A[2*in + 1]*A[2*in + 1])/(nx*ny*nz);
+            }
+        }
+        return h;
+    }
+
+    /**
+     * A model without phase computing PSFs with phases keeps a null phase.
+     */
+    @Test
+    public void nullPhaseIsKept() {
+        WideFieldModel model = buildModel(false, DEFOCUS, null, MODULUS);
+        try {
+            double[] psf = model.getPsf().toDouble().flatten();
+            Array3D[] psfs = model.computePsfs(null, new double[][] {PHASE, null}, null);
+            WideFieldModel expected = buildModel(false, DEFOCUS, null, MODULUS);
+            try {
+                assertSamePsf(expected.getPsf(), psfs[1], "PSF without phase of the batch");
+            } finally {
+                expected.close();
+            }
+            assertTrue(model.getPhaseCoefs() == null);
+            assertArrayEquals(psf, model.getPsf().toDouble().flatten(), 0.0);
+            model.setDefocus(new double[] {1.33/500e-9, 0, 0});
+            expected = buildModel(false, new double[] {1.33/500e-9, 0, 0}, null, MODULUS);
+            try {
+                assertSamePsf(expected.getPsf(), model.getPsf(), "PSF without phase of the model");
+            } finally {
+                expected.close();
+            }
+        } finally {
+            model.close();
+        }
+    }
+
+    /**
+     * Build a model with the given parameters, the phase being null if
+     * phase is null.
+     */
+    static WideFieldModel buildModel(boolean single, double[] defocus, double[] phase, double[] modulus) {
+        WideFieldModel model = new WideFieldModel(new Shape(16, 16, 8), 5, 3, 1.2, 500e-9, 1.33, 80e-9, 150e-9, false, single);
+        model.setPhase(phase);
+        model.setModulus(modulus);
+        model.setDefocus(defocus);
+        return model;
+    }
+
+    /**
+     * Check that the parameters of the model built by
+     * {@link #buildModel(boolean, double[], double[], double[])} with the
+     * default parameters and its PSF have not been changed.
+     * @param model the model
+     * @param psf its PSF before, null if it was not computed
+     */
+    static void assertUnchanged(WideFieldModel model, double[] psf) {
+        assertArrayEquals(DEFOCUS, model.getDefocus(), 0.0);
+        assertArrayEquals(PHASE, model.getPhaseCoefs().getData(), 0.0);
+        assertArrayEquals(MODULUS, model.getModulusCoefs().getData(), 0.0);
+        if (psf != null) {
+            assertArrayEquals(psf, model.getPsf().toDouble().flatten(), 0.0);
+        }
+        WideFieldModel expected = buildModel(model.isSingle(), DEFOCUS, PHASE, MODULUS);
+        try {
+            assertSamePsf(expected.getPsf(), model.getPsf(), "PSF of the model");
+        } finally {
+            expected.close();
+        }
+    }
+
+    static void assertSamePsf(Array3D expected, Array3D actual, String what) {
+        double tolerance = (actual instanceof Float3D ? SINGLE_TOLERANCE : DOUBLE_TOLERANCE);
+        assertTrue(what + ": wrong type", expected.getClass() == actual.getClass());
+        double error = WideFieldModelModesTest.distance(expected.toDouble().flatten(), actual.toDouble().flatten());
+        assertTrue(what + ": relative error " + error, error < tolerance);
+    }
+}
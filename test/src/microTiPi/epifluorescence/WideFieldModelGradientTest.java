@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.epifluorescence;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import mitiv.array.Double3D;
+import mitiv.array.Float3D;
+import mitiv.base.Shape;
+import mitiv.linalg.shaped.DoubleShapedVector;
+import mitiv.linalg.shaped.DoubleShapedVectorSpace;
+import mitiv.linalg.shaped.FloatShapedVectorSpace;
+import mitiv.linalg.shaped.ShapedVector;
+
+/**
+ * Check the Jacobians of {@link WideFieldModel} against centered finite
+ * differences of f(x) = &lt;h(x), q&gt; where h is the PSF and q a random
+ * gradient in the PSF space.
+ *
+ * @author Ferréol
+ */
+public class WideFieldModelGradientTest {
+
+    /* relative steps are used for n_i/λ, absolute steps otherwise */
+    private static final double[] DOUBLE_STEPS = {1e-5, 10, 1e-4}; // n_i/λ, pupil shift, Zernike coefficients
+    private static final double[] SINGLE_STEPS = {1e-3, 1000, 1e-2};
+    private static final double DOUBLE_TOLERANCE = 1e-6;
+    private static final double SINGLE_TOLERANCE = 1e-3;
+
+    @Test
+    public void defocusDouble() {
+        check(WideFieldModel.DEFOCUS, false);
+    }
+
+    @Test
+    public void defocusSingle() {
+        check(WideFieldModel.DEFOCUS, true);
+    }
+
+    @Test
+    public void phaseDouble() {
+        check(WideFieldModel.PHASE, false);
+    }
+
+    @Test
+    public void phaseSingle() {
+        check(WideFieldModel.PHASE, true);
+    }
+
+    @Test
+    public void modulusDouble() {
+        check(WideFieldModel.MODULUS, false);
+    }
+
+    @Test
+    public void modulusSingle() {
+        check(WideFieldModel.MODULUS, true);
+    }
+
+    /**
+     * Build a model with a shifted defocus function, an aberrated phase and a
+     * non uniform modulus.
+     */
+    static WideFieldModel buildModel(boolean single) {
+        WideFieldModel model = new WideFieldModel(new Shape(16, 16, 8), 5, 3, 1.2, 500e-9, 1.33, 80e-9, 150e-9, false, single);
+        model.setPhase(new double[] {0.3, -0.2, 0.1, 0.05, -0.4});
+        model.setModulus(new double[] {1.0, 0.1, -0.05});
+        model.setDefocus(new double[] {1.33/500e-9, 2e4, -1e4});
+        return model;
+    }
+
+    private static void check(int flag, boolean single) {
+        WideFieldModel model = buildModel(single);
+        try {
+            Shape shape = model.getPsf().getShape();
+            double[] q = new double[shape.number()];
+            Random random = new Random(1);
+            for (int i = 0; i < q.length; i++) {
+                q[i] = random.nextGaussian();
+            }
+            ShapedVector qv;
+            if (single) {
+                float[] qf = new float[q.length];
+                for (int i = 0; i < q.length; i++) {
+                    qf[i] = (float) q[i];
+                }
+                qv = new FloatShapedVectorSpace(shape).create(Float3D.wrap(qf, shape));
+            } else {
+                qv = new DoubleShapedVectorSpace(shape).create(Double3D.wrap(q, shape));
+            }
+
+            DoubleShapedVector grad = jacobian(model, flag, qv);
+            DoubleShapedVectorSpace space = grad.getOwner();
+            double[] x = parameters(model, flag);
+            double[] steps = (single ? SINGLE_STEPS : DOUBLE_STEPS);
+            double num = 0, den = 0;
+            for (int k = 0; k < x.length; k++) {
+                double h;
+                if (flag == WideFieldModel.DEFOCUS) {
+                    h = (k == 0 ? steps[0]*x[0] : steps[1]);
+                } else {
+                    h = steps[2];
+                }
+                double[] xp = x.clone();
+                xp[k] += h;
+                setParameters(model, flag, space.wrap(xp));
+                double fp = cost(model, q);
+                double[] xm = x.clone();
+                xm[k] -= h;
+                setParameters(model, flag, space.wrap(xm));
+                double fm = cost(model, q);
+                setParameters(model, flag, space.wrap(x.clone()));
+                double fd = (fp - fm)/(2*h);
+                num += (grad.get(k) - fd)*(grad.get(k) - fd);
+                den += fd*fd;
+            }
+            double error = Math.sqrt(num/den);
+            assertTrue("relative error " + error + " of the gradient of group " + flag,
+                    error < (single ? SINGLE_TOLERANCE : DOUBLE_TOLERANCE));
+
+            /* after the finite differences, the Jacobian is still the one at x */
+            DoubleShapedVector again = jacobian(model, flag, qv);
+            for (int k = 0; k < x.length; k++) {
+                assertTrue("Jacobian not evaluated at the current parameters",
+                        Math.abs(again.get(k) - grad.get(k)) <= 1e-12*Math.abs(grad.get(k)));
+            }
+        } finally {
+            model.close();
+        }
+    }
+
+    private static DoubleShapedVector jacobian(WideFieldModel model, int flag, ShapedVector q) {
+        switch (flag) {
+            case WideFieldModel.DEFOCUS:
+                return model.apply_J_defocus(q);
+            case WideFieldModel.PHASE:
+                return model.apply_J_phase(q);
+            default:
+                return model.apply_J_modulus(q);
+        }
+    }
+
+    private static double[] parameters(WideFieldModel model, int flag) {
+        switch (flag) {
+            case WideFieldModel.DEFOCUS:
+                return model.getDefocus().clone();
+            case WideFieldModel.PHASE:
+                return model.getPhaseCoefs().getData().clone();
+            default:
+                return model.getModulusCoefs().getData().clone();
+        }
+    }
+
+    private static void setParameters(WideFieldModel model, int flag, DoubleShapedVector x) {
+        switch (flag) {
+            case WideFieldModel.DEFOCUS:
+                model.setDefocus(x);
+                break;
+            case WideFieldModel.PHASE:
+                model.setPhase(x);
+                break;
+            default:
+                model.setModulus(x);
+        }
+    }
+
+    private static double cost(WideFieldModel model, double[] q) {
+        double[] h = model.getPsf().toDouble().flatten();
+        double f = 0;
+        for (int i = 0; i < h.length; i++) {
+            f += h[i]*q[i];
+        }
+        return f;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.epifluorescence;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mitiv.array.Double3D;
+import mitiv.array.Float3D;
+import mitiv.base.Shape;
+import mitiv.linalg.shaped.DoubleShapedVector;
+import mitiv.linalg.shaped.DoubleShapedVectorSpace;
+import mitiv.linalg.shaped.FloatShapedVectorSpace;
+import mitiv.linalg.shaped.ShapedVector;
+
+/**
+ * Check that the optional computation modes of {@link WideFieldModel} give
+ * the PSF and the Jacobians of the default computation.
+ *
+ * @author Ferréol
+ */
+public class WideFieldModelModesTest {
+
+    private static final double DOUBLE_TOLERANCE = 1e-12;
+    private static final double SINGLE_TOLERANCE = 1e-5;
+    /* a few rounding errors for each of the at most 16 steps of a run */
+    private static final double MAXIMUM_DRIFT = 1e-13;
+
+    @Test
+    public void symmetryEvenDouble() {
+        checkSymmetry(8, false);
+    }
+
+    @Test
+    public void symmetryOddDouble() {
+        checkSymmetry(7, false);
+    }
+
+    @Test
+    public void symmetryEvenSingle() {
+        checkSymmetry(8, true);
+    }
+
+    @Test
+    public void symmetryOddSingle() {
+        checkSymmetry(7, true);
+    }
+
+    /**
+     * With a null phase, the PSF and the Jacobians computed with the symmetry
+     * along z are those computed on all the slices.
+     */
+    private static void checkSymmetry(int nz, boolean single) {
+        WideFieldModel reference = buildModel(nz, single, false);
+        WideFieldModel model = buildModel(nz, single, false);
+        reference.setUseSymmetry(false);
+        try {
+            assertTrue(model.isUsingSymmetry());
+            compare(reference, model, single ? SINGLE_TOLERANCE : DOUBLE_TOLERANCE, "symmetry");
+        } finally {
+            reference.close();
+            model.close();
+        }
+    }
+
+    @Test
+    public void phasorRecurrenceDouble() {
+        checkPhasorRecurrence(40, false);
+        checkPhasorRecurrence(41, false);
+    }
+
+    @Test
+    public void phasorRecurrenceSingle() {
+        checkPhasorRecurrence(40, true);
+        checkPhasorRecurrence(41, true);
+    }
+
+    /**
+     * The phasor recurrence gives the PSF and the Jacobians of the direct
+     * computation. With 40 or 41 slices, the runs of at most 16 slices are
+     * re-anchored and cut at the jump of z after Nz/2. The drift of the
+     * recurrence is bounded on each slice.
+     */
+    private static void checkPhasorRecurrence(int nz, boolean single) {
+        double tolerance = (single ? SINGLE_TOLERANCE : DOUBLE_TOLERANCE);
+        for (boolean aberrated : new boolean[] {false, true}) {
+            WideFieldModel reference = buildModel(nz, single, aberrated);
+            WideFieldModel model = buildModel(nz, single, aberrated);
+            model.setUsePhasorRecurrence(true);
+            try {
+                double[] expected = reference.getPsf().toDouble().flatten();
+                double[] actual = model.getPsf().toDouble().flatten();
+                int sliceSize = expected.length/nz;
+                for (int iz = 0; iz < nz; iz++) {
+                    double drift = distance(
+                            Arrays.copyOfRange(expected, iz*sliceSize, (iz + 1)*sliceSize),
+                            Arrays.copyOfRange(actual, iz*sliceSize, (iz + 1)*sliceSize));
+                    assertTrue("drift " + drift + " of the recurrence at slice " + iz + " of " + nz,
+                            drift < (single ? SINGLE_TOLERANCE : MAXIMUM_DRIFT));
+                }
+                compare(reference, model, tolerance, "phasor recurrence");
+            } finally {
+                reference.close();
+                model.close();
+            }
+        }
+    }
+
+    @Test
+    public void phasorCacheDouble() {
+        checkPhasorCache(40, false);
+        checkPhasorCache(41, false);
+    }
+
+    @Test
+    public void phasorCacheSingle() {
+        checkPhasorCache(40, true);
+        checkPhasorCache(41, true);
+    }
+
+    /**
+     * The Jacobians computed with the phasors cached by the direct
+     * computation or by the recurrence are those of the default computation,
+     * also after a change of the parameters has made the cache stale.
+     */
+    private static void checkPhasorCache(int nz, boolean single) {
+        double tolerance = (single ? SINGLE_TOLERANCE : DOUBLE_TOLERANCE);
+        for (boolean recurrence : new boolean[] {false, true}) {
+            for (boolean aberrated : new boolean[] {false, true}) {
+                WideFieldModel reference = buildModel(nz, single, aberrated);
+                WideFieldModel model = buildModel(nz, single, aberrated);
+                model.setUsePhasorCache(true);
+                model.setUsePhasorRecurrence(recurrence);
+                try {
+                    compare(reference, model, tolerance, "phasor cache");
+                    double[] defocus = {1.33/500e-9, -1e4, 3e4};
+                    reference.setDefocus(defocus);
+                    model.setDefocus(defocus);
+                    compare(reference, model, tolerance, "phasor cache after a new defocus");
+                } finally {
+                    reference.close();
+                    model.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lowMemoryDouble() {
+        checkLowMemory(40, false);
+        checkLowMemory(41, false);
+    }
+
+    @Test
+    public void lowMemorySingle() {
+        checkLowMemory(40, true);
+        checkLowMemory(41, true);
+    }
+
+    /**
+     * Without the complex amplitude of the PSF, the Jacobians computed from
+     * its slices computed again are those of the default computation, alone
+     * or with the phasor cache, and also when the mode is enabled after the
+     * PSF has been computed.
+     */
+    private static void checkLowMemory(int nz, boolean single) {
+        double tolerance = (single ? SINGLE_TOLERANCE : DOUBLE_TOLERANCE);
+        for (boolean cache : new boolean[] {false, true}) {
+            for (boolean aberrated : new boolean[] {false, true}) {
+                WideFieldModel reference = buildModel(nz, single, aberrated);
+                WideFieldModel model = buildModel(nz, single, aberrated);
+                model.setUsePhasorCache(cache);
+                try {
+                    model.getPsf();
+                    model.setLowMemory(true);
+                    compare(reference, model, tolerance, "low memory");
+                    double error = distance(reference.get_cpxPsf().toDouble().flatten(),
+                            model.get_cpxPsf().toDouble().flatten());
+                    assertTrue("low memory: relative error " + error + " of the complex PSF", error < tolerance);
+                } finally {
+                    reference.close();
+                    model.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void hankelEngine() {
+        /* pupil radius of 12 and 25 pixels */
+        checkHankel(64, false, 0.08);
+        checkHankel(64, true, 0.08);
+        checkHankel(128, false, 0.015);
+    }
+
+    /**
+     * The PSF of a radial model computed by the Hankel transform differs from
+     * the PSF computed by FFT by the pixelated edge of the pupil of the
+     * latter: by a few percent for a pupil radius above 10 pixels.
+     */
+    private static void checkHankel(int n, boolean single, double bound) {
+        WideFieldModel reference = new WideFieldModel(new Shape(n, n, 4), 4, 3, 1.2, 500e-9, 1.33, 80e-9, 150e-9, true, single);
+        WideFieldModel model = new WideFieldModel(new Shape(n, n, 4), 4, 3, 1.2, 500e-9, 1.33, 80e-9, 150e-9, true, single);
+        try {
+            for (WideFieldModel m : new WideFieldModel[] {reference, model}) {
+                m.setPhase(new double[] {0.3, -0.2, 0.1, 0.05});
+                m.setModulus(new double[] {1.0, 0.1, -0.05});
+            }
+            model.setUseHankel(true);
+            double error = distance(reference.getPsf().toDouble().flatten(), model.getPsf().toDouble().flatten());
+            assertTrue("relative difference " + error + " between the Hankel and FFT engines for " + n + " pixels",
+                    error < bound);
+        } finally {
+            reference.close();
+            model.close();
+        }
+    }
+
+    /**
+     * Build a model with a shifted defocus function and a non uniform modulus.
+     * @param nz number of slices
+     * @param single precision of the model
+     * @param aberrated if false, the phase is null
+     */
+    static WideFieldModel buildModel(int nz, boolean single, boolean aberrated) {
+        WideFieldModel model = new WideFieldModel(new Shape(16, 16, nz), 5, 3, 1.2, 500e-9, 1.33, 80e-9, 150e-9, false, single);
+        if (aberrated) {
+            model.setPhase(new double[] {0.3, -0.2, 0.1, 0.05, -0.4});
+        }
+        model.setModulus(new double[] {1.0, 0.1, -0.05});
+        model.setDefocus(new double[] {1.33/500e-9, 2e4, -1e4});
+        return model;
+    }
+
+    /**
+     * Compare the PSF and the Jacobians of two models for a same random
+     * gradient q in the PSF space.
+     * @param reference model computed in the default mode
+     * @param model model computed in the tested mode
+     * @param tolerance bound of the relative error
+     * @param mode name of the tested mode
+     */
+    static void compare(WideFieldModel reference, WideFieldModel model, double tolerance, String mode) {
+        double error = distance(reference.getPsf().toDouble().flatten(), model.getPsf().toDouble().flatten());
+        assertTrue(mode + ": relative error " + error + " of the PSF", error < tolerance);
+        ShapedVector q = gradient(reference);
+        String[] names = {"defocus", "phase", "modulus"};
+        for (int flag = 0; flag < names.length; flag++) {
+            double[] expected = jacobian(reference, flag, q).getData();
+            double[] actual = jacobian(model, flag, q).getData();
+            error = distance(expected, actual);
+            assertTrue(mode + ": relative error " + error + " of the Jacobian of the " + names[flag], error < tolerance);
+        }
+        /* the PSF is the same after the Jacobians */
+        error = distance(reference.getPsf().toDouble().flatten(), model.getPsf().toDouble().flatten());
+        assertTrue(mode + ": relative error " + error + " of the PSF after the Jacobians", error < tolerance);
+    }
+
+    /**
+     * @return ||b - a|| / ||a||
+     */
+    static double distance(double[] a, double[] b) {
+        double num = 0, den = 0;
+        for (int i = 0; i < a.length; i++) {
+            num += (b[i] - a[i])*(b[i] - a[i]);
+            den += a[i]*a[i];
+        }
+        return Math.sqrt(num/den);
+    }
+
+    private static ShapedVector gradient(WideFieldModel model) {
+        Shape shape = model.getPsf().getShape();
+        Random random = new Random(1);
+        if (model.isSingle()) {
+            float[] q = new float[shape.number()];
+            for (int i = 0; i < q.length; i++) {
+                q[i] = (float) random.nextGaussian();
+            }
+            return new FloatShapedVectorSpace(shape).create(Float3D.wrap(q, shape));
+        }
+        double[] q = new double[shape.number()];
+        for (int i = 0; i < q.length; i++) {
+            q[i] = random.nextGaussian();
+        }
+        return new DoubleShapedVectorSpace(shape).create(Double3D.wrap(q, shape));
+    }
+
+    private static DoubleShapedVector jacobian(WideFieldModel model, int flag, ShapedVector q) {
+        switch (flag) {
+            case 0:
+                return model.apply_J_defocus(q);
+            case 1:
+                return model.apply_J_phase(q);
+            default:
+                return model.apply_J_modulus(q);
+        }
+    }
+}
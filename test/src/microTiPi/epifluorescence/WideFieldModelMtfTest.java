@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.epifluorescence;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import mitiv.base.Shape;
+
+/**
+ * Check the MTF of {@link WideFieldModel} against a direct discrete Fourier
+ * transform of its PSF.
+ *
+ * @author Ferréol
+ */
+public class WideFieldModelMtfTest {
+
+    private static final double DOUBLE_TOLERANCE = 1e-12;
+    private static final double SINGLE_TOLERANCE = 1e-5;
+
+    @Test
+    public void mtfDouble() {
+        check(11, 5, false);
+        check(12, 6, false);
+    }
+
+    @Test
+    public void mtfSingle() {
+        check(11, 5, true);
+        check(12, 6, true);
+    }
+
+    /**
+     * Compare the MTF, its half and its modulus to the DFT of the PSF for an
+     * odd or even size of the PSF.
+     */
+    private static void check(int n, int nz, boolean single) {
+        final int NX = n, NY = n, NZ = nz;
+        WideFieldModel model = new WideFieldModel(new Shape(NX, NY, NZ), 5, 3, 1.2, 500e-9, 1.33, 80e-9, 150e-9, false, single);
+        try {
+            model.setPhase(new double[] {0.3, -0.2, 0.1, 0.05, -0.4});
+            model.setDefocus(new double[] {1.33/500e-9, 2e4, -1e4});
+            double tolerance = (single ? SINGLE_TOLERANCE : DOUBLE_TOLERANCE);
+            double[] expected = dft(model.getPsf().toDouble().flatten(), NX, NY, NZ);
+            double scale = Math.hypot(expected[0], expected[1]);
+
+            double[] mtf = model.getMtf().toDouble().flatten();
+            double[] half = model.getHalfMtf().toDouble().flatten();
+            double[] modulus = model.getMtfModulus().toDouble().flatten();
+            int hx = NX/2 + 1;
+            assertTrue(half.length == 2*hx*NY*NZ);
+            double mtfError = 0, halfError = 0, modulusError = 0;
+            for (int kz = 0; kz < NZ; kz++) {
+                for (int ky = 0; ky < NY; ky++) {
+                    for (int kx = 0; kx < NX; kx++) {
+                        int k = kx + NX*(ky + NY*kz);
+                        double re = expected[2*k], im = expected[2*k + 1];
+                        mtfError = Math.max(mtfError, Math.hypot(mtf[2*k] - re, mtf[2*k + 1] - im));
+                        modulusError = Math.max(modulusError, Math.abs(modulus[k] - Math.hypot(re, im)));
+                        if (kx < hx) {
+                            int h = kx + hx*(ky + NY*kz);
+                            halfError = Math.max(halfError, Math.hypot(half[2*h] - re, half[2*h + 1] - im));
+                        }
+                    }
+                }
+            }
+            assertTrue("error " + mtfError/scale + " of the MTF", mtfError < tolerance*scale);
+            assertTrue("error " + halfError/scale + " of the half MTF", halfError < tolerance*scale);
+            assertTrue("error " + modulusError/scale + " of the modulus of the MTF", modulusError < tolerance*scale);
+        } finally {
+            model.close();
+        }
+    }
+
+    /**
+     * @return the direct DFT of h as interleaved complex values of shape
+     * (NX, NY, NZ)
+     */
+    private static double[] dft(double[] h, int NX, int NY, int NZ) {
+        double[] F = new double[2*h.length];
+        for (int kz = 0; kz < NZ; kz++) {
+            for (int ky = 0; ky < NY; ky++) {
+                for (int kx = 0; kx < NX; kx++) {
+                    double re = 0, im = 0;
+                    for (int z = 0; z < NZ; z++) {
+                        for (int y = 0; y < NY; y++) {
+                            for (int x = 0; x < NX; x++) {
+                                double theta = -2*Math.PI*((double) (kx*x)/NX + (double) (ky*y)/NY + (double) (kz*z)/NZ);
+                                double v = h[x + NX*(y + NY*z)];
+                                re += v*Math.cos(theta);
+                                im += v*Math.sin(theta);
+                            }
+                        }
+                    }
+                    int k = kx + NX*(ky + NY*kz);
+                    F[2*k] = re;
+                    F[2*k + 1] = im;
+                }
+            }
+        }
+        return F;
+    }
+}
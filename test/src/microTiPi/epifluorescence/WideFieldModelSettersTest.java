@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.epifluorescence;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import mitiv.base.Shape;
+
+/**
+ * Check that the PSF of a {@link WideFieldModel} after a sequence of setters
+ * is the PSF of a model built with the final parameters, whichever pupil
+ * components the setters made outdated.
+ *
+ * @author Ferréol
+ */
+public class WideFieldModelSettersTest {
+
+    private static final double DOUBLE_TOLERANCE = 1e-12;
+    private static final double SINGLE_TOLERANCE = 1e-5;
+
+    private static final double[] DEFOCUS = {1.33/500e-9, 2e4, -1e4};
+    private static final double[] PHASE = {0.3, -0.2, 0.1, 0.05, -0.4};
+    private static final double[] MODULUS = {1.0, 0.1, -0.05};
+
+    @Test
+    public void setterSequence() {
+        double[] defocus = {1.32/500e-9, -3e4, 1e4};
+        double[] phase = {-0.1, 0.2, 0.3, 0, 0.1};
+        double[] modulus = {1.0, -0.1, 0.2};
+        WideFieldModel model = buildModel(false, DEFOCUS, PHASE, MODULUS);
+        try {
+            check(model, DEFOCUS, PHASE, MODULUS, "initial");
+            model.setDefocus(defocus);
+            check(model, defocus, PHASE, MODULUS, "after setDefocus");
+            model.setPhase(phase);
+            check(model, defocus, phase, MODULUS, "after setPhase");
+            model.setSingle(true);
+            check(model, defocus, phase, MODULUS, "after setSingle(true)");
+            model.setModulus(modulus);
+            model.setDefocus(DEFOCUS);
+            check(model, DEFOCUS, phase, modulus, "after setModulus and setDefocus in single precision");
+            model.setSingle(false);
+            check(model, DEFOCUS, phase, modulus, "after setSingle(false)");
+            model.setPhase(phase.clone());
+            model.setModulus(modulus.clone());
+            check(model, DEFOCUS, phase, modulus, "after setting the same values");
+            model.setPhase((double[]) null);
+            check(model, DEFOCUS, null, modulus, "after setPhase(null)");
+            model.setPhase(PHASE);
+            model.setSingle(true);
+            model.setModulus(MODULUS);
+            check(model, DEFOCUS, PHASE, MODULUS, "after setPhase, setSingle and setModulus");
+        } finally {
+            model.close();
+        }
+    }
+
+    /**
+     * Build a model with the given parameters, the phase being null if
+     * phase is null.
+     */
+    private static WideFieldModel buildModel(boolean single, double[] defocus, double[] phase, double[] modulus) {
+        WideFieldModel model = new WideFieldModel(new Shape(16, 16, 8), 5, 3, 1.2, 500e-9, 1.33, 80e-9, 150e-9, false, single);
+        model.setPhase(phase);
+        model.setModulus(modulus);
+        model.setDefocus(defocus);
+        return model;
+    }
+
+    /**
+     * Compare the PSF of the model to the PSF of a model built in the same
+     * precision with the given parameters.
+     */
+    private static void check(WideFieldModel model, double[] defocus, double[] phase, double[] modulus, String when) {
+        WideFieldModel expected = buildModel(model.isSingle(), defocus, phase, modulus);
+        try {
+            double[] h = model.getPsf().toDouble().flatten();
+            double error = WideFieldModelModesTest.distance(expected.getPsf().toDouble().flatten(), h);
+            assertTrue(when + ": relative error " + error + " of the PSF",
+                    error < (model.isSingle() ? SINGLE_TOLERANCE : DOUBLE_TOLERANCE));
+            assertTrue(when + ": wrong precision of the PSF",
+                    model.getPsf().getClass() == expected.getPsf().getClass());
+        } finally {
+            expected.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Check the Bessel functions and the quasi-discrete Hankel transform of
+ * {@link HankelTransform}.
+ *
+ * @author Ferréol
+ */
+public class HankelTransformTest {
+
+    /* accuracy of the rational and asymptotic approximations */
+    private static final double BESSEL_TOLERANCE = 1e-7;
+
+    @Test
+    public void besselFunctionsMatchSeries() {
+        assertEquals(1.0, HankelTransform.j0(0), BESSEL_TOLERANCE);
+        assertEquals(0.0, HankelTransform.j1(0), 0.0);
+        for (double x = 0.25; x <= 20; x += 0.25) {
+            assertEquals("J0(" + x + ")", series(0, x), HankelTransform.j0(x), BESSEL_TOLERANCE);
+            assertEquals("J1(" + x + ")", series(1, x), HankelTransform.j1(x), BESSEL_TOLERANCE);
+            assertEquals(HankelTransform.j0(x), HankelTransform.j0(-x), 0.0);
+            assertEquals(-HankelTransform.j1(x), HankelTransform.j1(-x), 0.0);
+        }
+    }
+
+    @Test
+    public void besselZerosMatchTables() {
+        double[] expected = {2.404825557695773, 5.520078110286311, 8.653727912911013,
+                11.791534439014281, 14.930917708487787, 18.071063967910924};
+        double[] zeros = HankelTransform.besselJ0Zeros(20);
+        assertArrayEquals(expected, zeros, BESSEL_TOLERANCE);
+        zeros = HankelTransform.besselJ0Zeros(1000);
+        assertTrue(zeros[zeros.length - 1] < 1000);
+        for (int n = 0; n < zeros.length; n++) {
+            assertEquals("J0 at its zero " + zeros[n], 0.0, HankelTransform.j0(zeros[n]), BESSEL_TOLERANCE);
+            if (n > 0) {
+                /* the zeros are about π apart, none is missed */
+                assertEquals(Math.PI, zeros[n] - zeros[n - 1], 0.05);
+            }
+        }
+        assertTrue(1000 - zeros[zeros.length - 1] < Math.PI);
+    }
+
+    /**
+     * exp(-πκ²) is its own 2D Fourier transform.
+     */
+    @Test
+    public void gaussianIsSelfTransform() {
+        HankelTransform transform = new HankelTransform(6, 6, 6);
+        double[] kappa = transform.getFrequencies();
+        double[] r = transform.getRadii();
+        assertEquals(0.0, r[0], 0.0);
+        double[] f = new double[2*kappa.length];
+        for (int k = 0; k < kappa.length; k++) {
+            f[2*k] = Math.exp(-Math.PI*kappa[k]*kappa[k]);
+            f[2*k + 1] = -0.5*f[2*k];
+        }
+        double[] g = new double[2*r.length];
+        transform.transform(f, g);
+        for (int m = 0; m < r.length; m++) {
+            double expected = Math.exp(-Math.PI*r[m]*r[m]);
+            assertEquals("real part at r = " + r[m], expected, g[2*m], 1e-8);
+            assertEquals("imaginary part at r = " + r[m], -0.5*expected, g[2*m + 1], 1e-8);
+        }
+    }
+
+    /**
+     * &lt;T f, g&gt; = &lt;f, T' g&gt; and only the frequencies lower than
+     * kMax are kept.
+     */
+    @Test
+    public void transposeIsAdjoint() {
+        HankelTransform transform = new HankelTransform(4, 10, 2.5);
+        double[] kappa = transform.getFrequencies();
+        assertTrue(kappa[kappa.length - 1] < 2.5);
+        Random random = new Random(1);
+        double[] f = new double[2*kappa.length];
+        for (int k = 0; k < f.length; k++) {
+            f[k] = random.nextGaussian();
+        }
+        double[] g = new double[2*transform.getRadii().length];
+        for (int m = 0; m < g.length; m++) {
+            g[m] = random.nextGaussian();
+        }
+        double[] Tf = new double[g.length];
+        double[] Ttg = new double[f.length];
+        transform.transform(f, Tf);
+        transform.transformTranspose(g, Ttg);
+        double lhs = 0, rhs = 0, scale = 0;
+        for (int m = 0; m < g.length; m++) {
+            lhs += Tf[m]*g[m];
+            scale += Math.abs(Tf[m]*g[m]);
+        }
+        for (int k = 0; k < f.length; k++) {
+            rhs += f[k]*Ttg[k];
+        }
+        assertEquals(lhs, rhs, 1e-13*scale);
+    }
+
+    /**
+     * @return J_n(x) by its power series
+     */
+    private static double series(int n, double x) {
+        double term = (n == 0 ? 1 : x/2);
+        double sum = term;
+        for (int k = 1; k < 80; k++) {
+            term *= -(x*x/4)/(k*(k + n));
+            sum += term;
+        }
+        return sum;
+    }
+}
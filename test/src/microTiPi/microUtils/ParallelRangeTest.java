@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microUtils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Check that the reductions of {@link ParallelRange} do not depend on the
+ * scheduling.
+ *
+ * @author Ferréol
+ */
+public class ParallelRangeTest {
+
+    private static final int LENGTH = 1000;
+    private static final int GRAIN = 7;
+
+    @Test
+    public void reductionIsReproducible() {
+        final double[] x = new double[LENGTH];
+        Random random = new Random(1);
+        for (int i = 0; i < LENGTH; i++) {
+            x[i] = random.nextGaussian()*Math.pow(10, random.nextInt(16));
+        }
+        /* expected: the chunks summed separately then in the order of the indices */
+        double expected = 0;
+        for (int i0 = 0; i0 < LENGTH; i0 += GRAIN) {
+            double chunk = 0;
+            for (int i = i0; i < Math.min(LENGTH, i0 + GRAIN); i++) {
+                chunk += x[i];
+            }
+            expected += chunk;
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ExecutorService fixed = Executors.newFixedThreadPool(3);
+        try {
+            for (int run = 0; run < 20; run++) {
+                assertEquals(expected, sum(pool, x), 0.0);
+                assertEquals(expected, sum(fixed, x), 0.0);
+            }
+        } finally {
+            pool.shutdown();
+            fixed.shutdown();
+        }
+    }
+
+    private static double sum(ExecutorService executor, final double[] x) {
+        return ParallelRange.reduce(executor, 0, x.length, GRAIN, new ParallelRange.Reduction<double[]>() {
+            @Override
+            public double[] create() {
+                return new double[1];
+            }
+
+            @Override
+            public void run(int start, int end, double[] acc) {
+                for (int i = start; i < end; i++) {
+                    acc[0] += x[i];
+                    if ((i % 13) == 0) {
+                        Thread.yield();
+                    }
+                }
+            }
+
+            @Override
+            public void merge(double[] acc, double[] next) {
+                acc[0] += next[0];
+            }
+        })[0];
+    }
+}
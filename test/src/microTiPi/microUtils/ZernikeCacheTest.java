@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Check the sharing, the extension and the eviction of the bases of
+ * {@link ZernikeCache}.
+ *
+ * @author Ferréol
+ */
+public class ZernikeCacheTest {
+
+    private static final int SIZE = 32;
+    private static final int WH = SIZE*SIZE;
+    private static final double RADIUS = 10;
+
+    private long maximumSize;
+
+    @Before
+    public void emptyCache() {
+        maximumSize = ZernikeCache.getMaximumSize();
+        ZernikeCache.clear();
+    }
+
+    @After
+    public void restoreCache() {
+        ZernikeCache.setMaximumSize(maximumSize);
+        ZernikeCache.clear();
+    }
+
+    @Test
+    public void prefixIsServed() {
+        double[] basis = ZernikeCache.getBasis(10, SIZE, SIZE, RADIUS, true, false);
+        assertEquals(10, ZernikeCache.getNumberOfModes(basis, SIZE, SIZE));
+        assertArrayEquals(Zernike.orthonormalBasis(10, SIZE, SIZE, RADIUS, true, false), basis, 0.0);
+        /* fewer modes are served from the cached basis without copy */
+        assertSame(basis, ZernikeCache.getBasis(6, SIZE, SIZE, RADIUS, true, false));
+        assertSame(basis, ZernikeCache.getBasis(10, SIZE, SIZE, RADIUS, true, false));
+        /* other geometries have their own basis */
+        double[] radial = ZernikeCache.getBasis(6, SIZE, SIZE, RADIUS, true, true);
+        assertNotSame(basis, radial);
+        assertArrayEquals(Zernike.orthonormalBasis(6, SIZE, SIZE, RADIUS, true, true), radial, 0.0);
+        assertNotSame(basis, ZernikeCache.getBasis(6, SIZE, SIZE, RADIUS + 1, true, false));
+    }
+
+    @Test
+    public void basisIsExtended() {
+        double[] first = ZernikeCache.getBasis(6, SIZE, SIZE, RADIUS, true, false);
+        double[] copy = first.clone();
+        double[] basis = ZernikeCache.getBasis(10, SIZE, SIZE, RADIUS, true, false);
+        assertNotSame(first, basis);
+        assertEquals(10, ZernikeCache.getNumberOfModes(basis, SIZE, SIZE));
+        /* the cached modes are reused, the previous basis is not modified */
+        assertArrayEquals(copy, first, 0.0);
+        assertArrayEquals(first, Arrays.copyOf(basis, 6*WH), 0.0);
+        assertArrayEquals(Zernike.orthonormalBasis(10, SIZE, SIZE, RADIUS, true, false), basis, 0.0);
+        assertSame(basis, ZernikeCache.getBasis(8, SIZE, SIZE, RADIUS, true, false));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        /* room for two bases of 5 modes */
+        ZernikeCache.setMaximumSize(8L*5*WH*5/2);
+        double[] a = ZernikeCache.getBasis(5, SIZE, SIZE, RADIUS, true, false);
+        double[] b = ZernikeCache.getBasis(5, SIZE, SIZE, RADIUS + 1, true, false);
+        assertSame(a, ZernikeCache.getBasis(5, SIZE, SIZE, RADIUS, true, false));
+        double[] c = ZernikeCache.getBasis(5, SIZE, SIZE, RADIUS + 2, true, false);
+        /* b was the least recently used */
+        assertSame(a, ZernikeCache.getBasis(5, SIZE, SIZE, RADIUS, true, false));
+        assertSame(c, ZernikeCache.getBasis(5, SIZE, SIZE, RADIUS + 2, true, false));
+        double[] b2 = ZernikeCache.getBasis(5, SIZE, SIZE, RADIUS + 1, true, false);
+        assertNotSame(b, b2);
+        assertArrayEquals(b, b2, 0.0);
+        /* then a */
+        assertSame(c, ZernikeCache.getBasis(5, SIZE, SIZE, RADIUS + 2, true, false));
+        assertSame(b2, ZernikeCache.getBasis(5, SIZE, SIZE, RADIUS + 1, true, false));
+        /* lowering the bound evicts c, now the least recently used */
+        ZernikeCache.setMaximumSize(8L*5*WH);
+        assertTrue(ZernikeCache.getMaximumSize() == 8L*5*WH);
+        assertSame(b2, ZernikeCache.getBasis(5, SIZE, SIZE, RADIUS + 1, true, false));
+        assertNotSame(c, ZernikeCache.getBasis(5, SIZE, SIZE, RADIUS + 2, true, false));
+        /* a basis larger than the cache is not kept */
+        double[] large = ZernikeCache.getBasis(15, SIZE, SIZE, RADIUS + 3, true, false);
+        assertNotSame(large, ZernikeCache.getBasis(15, SIZE, SIZE, RADIUS + 3, true, false));
+    }
+
+    @Test
+    public void clearedReferenceIsComputedAgain() throws Exception {
+        double[] basis = ZernikeCache.getBasis(6, SIZE, SIZE, RADIUS, true, false);
+        clearReferences();
+        double[] again = ZernikeCache.getBasis(6, SIZE, SIZE, RADIUS, true, false);
+        assertNotSame(basis, again);
+        assertArrayEquals(basis, again, 0.0);
+        assertSame(again, ZernikeCache.getBasis(6, SIZE, SIZE, RADIUS, true, false));
+        /* the extension of a cleared basis computes all the modes */
+        clearReferences();
+        double[] extended = ZernikeCache.getBasis(9, SIZE, SIZE, RADIUS, true, false);
+        assertArrayEquals(Zernike.orthonormalBasis(9, SIZE, SIZE, RADIUS, true, false), extended, 0.0);
+    }
+
+    @Test
+    public void nothingIsCachedWithoutSize() {
+        ZernikeCache.getBasis(6, SIZE, SIZE, RADIUS, true, false);
+        ZernikeCache.setMaximumSize(0);
+        assertTrue(ZernikeCache.getMaximumSize() == 0);
+        double[] basis = ZernikeCache.getBasis(6, SIZE, SIZE, RADIUS, true, false);
+        double[] again = ZernikeCache.getBasis(6, SIZE, SIZE, RADIUS, true, false);
+        assertNotSame(basis, again);
+        assertArrayEquals(basis, again, 0.0);
+        ZernikeCache.setMaximumSize(-1);
+        assertTrue(ZernikeCache.getMaximumSize() == 0);
+    }
+
+    @Test
+    public void emptyBasis() {
+        assertEquals(0, ZernikeCache.getBasis(0, SIZE, SIZE, RADIUS, true, false).length);
+        assertEquals(0, Zernike.extendBasis(null, 0, 0, SIZE, SIZE, RADIUS, true, false).length);
+        double[] basis = ZernikeCache.getBasis(4, SIZE, SIZE, RADIUS, true, false);
+        assertArrayEquals(Zernike.orthonormalBasis(4, SIZE, SIZE, RADIUS, true, false), basis, 0.0);
+        assertSame(basis, ZernikeCache.getBasis(0, SIZE, SIZE, RADIUS, true, false));
+    }
+
+    /**
+     * Clear the soft references of the cached bases, as the garbage
+     * collector does under memory pressure.
+     */
+    private static void clearReferences() throws Exception {
+        Field field = ZernikeCache.class.getDeclaredField("cache");
+        field.setAccessible(true);
+        synchronized (ZernikeCache.class) {
+            for (Object entry : ((Map<?, ?>) field.get(null)).values()) {
+                Field reference = entry.getClass().getDeclaredField("basis");
+                reference.setAccessible(true);
+                ((SoftReference<?>) reference.get(entry)).clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import mitiv.utils.MathUtils;
+
+/**
+ * Check the orthonormal Zernike bases against the bases computed as before
+ * the recurrences: explicit sums of the radial polynomials orthonormalized by
+ * {@link MathUtils#gram_schmidt_orthonormalization(double[], int, int, int)}.
+ *
+ * @author Ferréol
+ */
+public class ZernikeTest {
+
+    private static final int SIZE = 64;
+    private static final double RADIUS = 20;
+
+    @Test
+    public void basisMatchesBaseline() {
+        check(21, false, 1e-12);
+    }
+
+    @Test
+    public void radialBasisMatchesBaseline() {
+        /* the radial modes of all degrees span the powers of r: the basis is
+         * ill-conditioned and the rounding errors are amplified by the
+         * orthonormalization (3e-10 at 10 modes, 0.15 at 21 modes where the
+         * baseline, orthonormalized only once, is far from orthonormal) */
+        check(8, true, 1e-8);
+    }
+
+    @Test
+    public void radialBasisIsOrthonormal() {
+        for (int nbZernike : new int[] {21, 30}) {
+            double[] basis = Zernike.orthonormalBasis(nbZernike, SIZE, SIZE, RADIUS, true, true);
+            assertOrthonormal(basis, nbZernike, 1e-12);
+        }
+        double[] first = Zernike.orthonormalBasis(12, SIZE, SIZE, RADIUS, true, true);
+        double[] extended = Zernike.extendBasis(first, 12, 30, SIZE, SIZE, RADIUS, true, true);
+        assertOrthonormal(extended, 30, 1e-12);
+    }
+
+    @Test
+    public void radialPolynomialsMatchBaseline() {
+        /* the explicit sums lose up to 1e-5 at degree 28 by cancellation,
+         * the recurrence is exact to 1e-13 */
+        double[] expected = baseline(30, true);
+        double[] actual = Zernike.zernikeArray(30, SIZE, SIZE, RADIUS, true, true);
+        assertArrayEquals(expected, actual, 1e-6);
+    }
+
+    @Test
+    public void extendedBasisMatchesBasis() {
+        double[] basis = Zernike.orthonormalBasis(21, SIZE, SIZE, RADIUS, true, false);
+        double[] first = Zernike.orthonormalBasis(12, SIZE, SIZE, RADIUS, true, false);
+        double[] extended = Zernike.extendBasis(first, 12, 21, SIZE, SIZE, RADIUS, true, false);
+        assertArrayEquals(basis, extended, 0.0);
+    }
+
+    private static void check(int nbZernike, boolean radial, double tolerance) {
+        double[] expected = MathUtils.gram_schmidt_orthonormalization(baseline(nbZernike, radial), SIZE, SIZE, nbZernike);
+        double[] basis = Zernike.orthonormalBasis(nbZernike, SIZE, SIZE, RADIUS, true, radial);
+        assertArrayEquals(expected, basis, tolerance);
+        assertOrthonormal(basis, nbZernike, tolerance);
+    }
+
+    private static void assertOrthonormal(double[] basis, int nbZernike, double tolerance) {
+        int WH = SIZE*SIZE;
+        for (int k = 0; k < nbZernike; k++) {
+            for (int j = 0; j <= k; j++) {
+                double dot = 0;
+                for (int l = 0; l < WH; l++) {
+                    dot += basis[l + k*WH]*basis[l + j*WH];
+                }
+                assertTrue("modes " + j + " and " + k + " not orthonormal",
+                        Math.abs(dot - (j == k ? 1 : 0)) < tolerance);
+            }
+        }
+    }
+
+    /* normalized Zernike polynomials computed by the explicit sums */
+    private static double[] baseline(int nbZernike, boolean radial) {
+        int WH = SIZE*SIZE;
+        double[] r = MathUtils.fftDist1D(SIZE, SIZE);
+        double[] theta = MathUtils.fftAngle1D(SIZE, SIZE);
+        double[] Z = new double[nbZernike*WH];
+        for (int nz = 0; nz < nbZernike; nz++) {
+            int n = nz;
+            int m = 0;
+            if (!radial) {
+                int[] nm = Zernike.zernumeroNoll(nz + 1);
+                n = nm[0];
+                m = nm[1];
+            }
+            double[] R_mn = Zernike.coeffRadialZCumSumLog(n, m);
+            double norm = 0;
+            for (int l = 0; l < WH; l++) {
+                if (r[l] < RADIUS) {
+                    double zr = 0;
+                    for (int s = (n - m)/2; s >= 0; s--) {
+                        zr += R_mn[s]*Math.pow(r[l]/RADIUS, n - 2*s);
+                    }
+                    if (m == 0) {
+                        zr *= Math.sqrt(n + 1);
+                    } else if (MathUtils.even(nz + 1)) {
+                        zr *= Math.sqrt(2*(n + 1))*Math.cos(m*theta[l]);
+                    } else {
+                        zr *= Math.sqrt(2*(n + 1))*Math.sin(m*theta[l]);
+                    }
+                    Z[l + nz*WH] = zr;
+                    norm += zr*zr;
+                }
+            }
+            for (int l = 0; l < WH; l++) {
+                Z[l + nz*WH] /= Math.sqrt(norm);
+            }
+        }
+        return Z;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 Ferréol Soulez ferreol.soulez@univ-lyon1.fr
+ *
+ * This file is part of microTiPi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package microTiPi.microscopy;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import microTiPi.epifluorescence.WideFieldModel;
+import mitiv.array.Double3D;
+import mitiv.base.Shape;
+
+/**
+ * Compare the joint estimation of the PSF parameters with the estimation of
+ * the parameter groups one after the other for the same number of iterations.
+ *
+ * @author Ferréol
+ */
+public class PSF_EstimationTest {
+
+    private static final Shape SHAPE = new Shape(16, 16, 8);
+    private static final int[] FLAGS = {WideFieldModel.DEFOCUS, WideFieldModel.PHASE, WideFieldModel.MODULUS};
+    private static final int ITERATIONS = 5; // per group and per loop
+    private static final int LOOPS = 2;
+
+    @Test
+    public void jointFitReachesAlternatingCost() {
+        WideFieldModel truth = buildModel();
+        WideFieldModel alternating = buildModel();
+        WideFieldModel joint = buildModel();
+        try {
+            truth.setPhase(new double[] {0.3, -0.2, 0.1, 0.05, -0.4});
+            truth.setModulus(new double[] {1.0, 0.1, -0.05});
+            truth.setDefocus(new double[] {1.36/500e-9, 2e4, -1e4});
+            Double3D data = truth.getPsf().toDouble();
+            double initialCost = cost(joint, data);
+
+            /* a point source at the origin: the data is the PSF itself */
+            Double3D obj = Double3D.create(SHAPE);
+            obj.set(0, 0, 0, 1.0);
+
+            PSF_Estimation estimation = buildEstimation(alternating, data, obj);
+            for (int loop = 0; loop < LOOPS; loop++) {
+                for (int flag : FLAGS) {
+                    estimation.setMaximumIterations(ITERATIONS);
+                    estimation.fitPSF(flag);
+                }
+            }
+            double alternatingCost = cost(alternating, data);
+
+            estimation = buildEstimation(joint, data, obj);
+            estimation.setMaximumIterations(LOOPS*FLAGS.length*ITERATIONS);
+            estimation.fitPSF(FLAGS);
+            double jointCost = cost(joint, data);
+
+            assertTrue("joint fit did not decrease the cost " + initialCost, jointCost < initialCost);
+            assertTrue("joint cost " + jointCost + " above the alternating cost " + alternatingCost,
+                    jointCost <= alternatingCost);
+        } finally {
+            truth.close();
+            alternating.close();
+            joint.close();
+        }
+    }
+
+    private static WideFieldModel buildModel() {
+        WideFieldModel model = new WideFieldModel(SHAPE, 5, 3, 1.2, 500e-9, 1.33, 80e-9, 150e-9, false, false);
+        model.setPhase(new double[5]);
+        model.setModulus(new double[] {1.0, 0.0, 0.0});
+        model.setDefocus(new double[] {1.33/500e-9, 0.0, 0.0});
+        return model;
+    }
+
+    private static PSF_Estimation buildEstimation(WideFieldModel model, Double3D data, Double3D obj) {
+        PSF_Estimation estimation = new PSF_Estimation(model);
+        estimation.setData(data);
+        estimation.setObj(obj);
+        estimation.setRelativeTolerance(0.);
+        return estimation;
+    }
+
+    /* sum of squared residuals, i.e. the data cost with uniform weights */
+    private static double cost(WideFieldModel model, Double3D data) {
+        double[] h = model.getPsf().toDouble().flatten();
+        double[] d = data.flatten();
+        double f = 0;
+        for (int i = 0; i < h.length; i++) {
+            f += (h[i] - d[i])*(h[i] - d[i]);
+        }
+        return f;
+    }
+}